@@ -0,0 +1,71 @@
+package com.xkuznetsova.shiftedgrid.component;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Steady-state scrolling doesn't allocate: after a warm-up all views come from the pool
+ * and every structure of the layout manager is already allocated.
+ *
+ * @author kuznetsova
+ */
+
+@RunWith(AndroidJUnit4.class)
+public class ScrollAllocationTest {
+
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+
+    /* Scroll step that doesn't divide the rows' heights */
+    private static final int FRAME_DELTA = 97;
+    private static final int WARM_UP_FRAMES = 200;
+    private static final int MEASURED_FRAMES = 300;
+
+    @Test
+    public void steadyStateScrollDoesNotAllocate() {
+        final Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        final int[] allocations = new int[1];
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                // not attached, so GapWorker prefetch doesn't run between the frames
+                RecyclerView recyclerView = createGrid(instrumentation.getTargetContext());
+                for (int frame = 0; frame < WARM_UP_FRAMES; frame++) {
+                    recyclerView.scrollBy(0, FRAME_DELTA);
+                }
+
+                Debug.startAllocCounting();
+                Debug.resetThreadAllocCount();
+                for (int frame = 0; frame < MEASURED_FRAMES; frame++) {
+                    recyclerView.scrollBy(0, FRAME_DELTA);
+                }
+                allocations[0] = Debug.getThreadAllocCount();
+                Debug.stopAllocCounting();
+            }
+        });
+
+        assertEquals(0, allocations[0]);
+    }
+
+    private static RecyclerView createGrid(Context context) {
+        RecyclerView recyclerView = new RecyclerView(context);
+        recyclerView.setItemAnimator(null);
+        recyclerView.setLayoutManager(new ShiftedGridLayoutManager(3, 60));
+        recyclerView.setAdapter(new CountingGridAdapter(50, 30));
+        recyclerView.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        recyclerView.layout(0, 0, WIDTH, HEIGHT);
+        return recyclerView;
+    }
+
+}
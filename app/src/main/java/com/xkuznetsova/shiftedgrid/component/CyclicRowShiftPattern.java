@@ -0,0 +1,30 @@
+package com.xkuznetsova.shiftedgrid.component;
+
+/**
+ * Staircase shift repeated every cycleLength rows: the first row of a cycle
+ * isn't shifted, the last one is shifted by the whole offset. A cycle of two rows
+ * shifts every second row.
+ *
+ * @author kuznetsova
+ */
+
+public class CyclicRowShiftPattern implements IRowShiftPattern {
+
+    private final int cycleLength;
+
+    /**
+     * @param cycleLength - number of rows in a cycle, at least 2
+     */
+    public CyclicRowShiftPattern(int cycleLength) {
+        if (cycleLength < 2) {
+            throw new IllegalArgumentException("cycle must contain at least two rows: " + cycleLength);
+        }
+        this.cycleLength = cycleLength;
+    }
+
+    @Override
+    public int getRowShift(int section, int rowInSection, int maxShift) {
+        return maxShift * (rowInSection % cycleLength) / (cycleLength - 1);
+    }
+
+}
@@ -0,0 +1,19 @@
+package com.xkuznetsova.shiftedgrid.component;
+
+/**
+ * Maps stable item ids to adapter positions. An adapter with stable ids that
+ * implements this interface lets {@link ShiftedGridLayoutManager} find the item
+ * it was showing at the top after notifyDataSetChanged() without a search.
+ *
+ * @author kuznetsova
+ */
+
+public interface IGridItemIdResolver {
+
+    /**
+     * @param itemId - stable id of an item
+     * @return current adapter position of the item, RecyclerView.NO_POSITION if it was removed
+     */
+    int getPositionForItemId(long itemId);
+
+}
@@ -0,0 +1,38 @@
+package com.xkuznetsova.shiftedgrid.component;
+
+/**
+ * Section metadata of a grid dataset. An adapter that implements this interface
+ * lets {@link ShiftedGridLayoutManager} build its dataset info without creating
+ * and binding a view for every adapter position.
+ *
+ * Positions are adapter positions. Every section starts with a header that is
+ * followed by its items, the footer (if any) is the last adapter position.
+ *
+ * @author kuznetsova
+ */
+
+public interface IGridSectionProvider {
+
+    /**
+     * @return number of sections (headers) in the dataset
+     */
+    int getSectionCount();
+
+    /**
+     * @param section - section index, sections are ordered by their position
+     * @return adapter position of the section's header
+     */
+    int getSectionHeaderPosition(int section);
+
+    /**
+     * @param section - section index
+     * @return number of items under the section's header
+     */
+    int getSectionItemCount(int section);
+
+    /**
+     * @return true if the last adapter position is a footer
+     */
+    boolean hasFooter();
+
+}
@@ -0,0 +1,20 @@
+package com.xkuznetsova.shiftedgrid.component;
+
+/**
+ * Section provider that can hand out its header positions at once. An adapter that
+ * implements this interface lets {@link ShiftedGridLayoutManager} build the geometry
+ * of a large dataset in background without reading every section on the main thread.
+ *
+ * @author kuznetsova
+ */
+
+public interface IGridSectionSnapshotProvider extends IGridSectionProvider {
+
+    /**
+     * The returned array must never be modified afterwards, it is read on a background thread.
+     *
+     * @return positions of the headers in ascending order
+     */
+    int[] getSectionHeaderPositionsSnapshot();
+
+}
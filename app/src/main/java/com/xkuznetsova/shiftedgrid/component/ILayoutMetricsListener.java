@@ -0,0 +1,31 @@
+package com.xkuznetsova.shiftedgrid.component;
+
+/**
+ * Receives the cost of every layout and scroll pass of {@link ShiftedGridLayoutManager}.
+ * Values are passed as primitives, reporting a pass doesn't allocate.
+ *
+ * @author kuznetsova
+ */
+
+public interface ILayoutMetricsListener {
+
+    /* Pass types */
+    int PASS_LAYOUT = 0;
+    int PASS_SCROLL = 1;
+
+    /**
+     * Called on the main thread after a pass is finished.
+     *
+     * @param passType - PASS_LAYOUT for onLayoutChildren, PASS_SCROLL for scrollVerticallyBy
+     * @param durationNanos - duration of the whole pass
+     * @param attachedViewCount - number of views attached to the grid
+     * @param recycledViewCount - number of views sent to the recycler
+     * @param obtainedViewCount - number of views obtained from the recycler (bound)
+     * @param filledRowCount - number of rows laid out
+     * @param indexRebuildNanos - time spent rebuilding the dataset info and geometry
+     */
+    void onLayoutPass(int passType, long durationNanos, int attachedViewCount,
+                      int recycledViewCount, int obtainedViewCount, int filledRowCount,
+                      long indexRebuildNanos);
+
+}
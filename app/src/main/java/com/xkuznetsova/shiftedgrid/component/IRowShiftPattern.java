@@ -0,0 +1,19 @@
+package com.xkuznetsova.shiftedgrid.component;
+
+/**
+ * Offset of an items' row across the scroll direction.
+ *
+ * @author kuznetsova
+ */
+
+public interface IRowShiftPattern {
+
+    /**
+     * @param section - section index, -1 for items above the first header
+     * @param rowInSection - index of the row among the item rows of its section
+     * @param maxShift - offsetInPixels of the layout manager
+     * @return row's offset, from 0 to maxShift
+     */
+    int getRowShift(int section, int rowInSection, int maxShift);
+
+}
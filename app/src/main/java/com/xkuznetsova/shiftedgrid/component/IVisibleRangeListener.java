@@ -0,0 +1,25 @@
+package com.xkuznetsova.shiftedgrid.component;
+
+/**
+ * Receives the visible adapter positions of {@link ShiftedGridLayoutManager} and the positions
+ * predicted to appear next, so their content can be loaded ahead of time. Values are passed
+ * as primitives, reporting a range doesn't allocate.
+ *
+ * @author kuznetsova
+ */
+
+public interface IVisibleRangeListener {
+
+    /**
+     * Called on the main thread after a layout or scroll pass, only if any of the values changed.
+     * The predicted range lies next to the visible one in the scroll direction.
+     *
+     * @param firstVisiblePosition - first position intersecting the viewport
+     * @param lastVisiblePosition - last position intersecting the viewport
+     * @param firstPredictedPosition - first position expected to appear, -1 if the grid isn't scrolled
+     * @param lastPredictedPosition - last position expected to appear, -1 if the grid isn't scrolled
+     */
+    void onVisibleRangeChanged(int firstVisiblePosition, int lastVisiblePosition,
+                               int firstPredictedPosition, int lastPredictedPosition);
+
+}
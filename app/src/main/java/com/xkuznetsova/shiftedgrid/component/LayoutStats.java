@@ -0,0 +1,103 @@
+package com.xkuznetsova.shiftedgrid.component;
+
+/**
+ * Accumulates the work {@link ShiftedGridLayoutManager} does per layout and scroll pass,
+ * the same counters the {@link ILayoutMetricsListener} receives for a single pass.
+ * Every view obtained from the recycler costs a bind (and a create when the pool
+ * is empty), every measure is a full measure pass of the view's hierarchy.
+ *
+ * Attach it with {@link ShiftedGridLayoutManager#setLayoutStats(LayoutStats)},
+ * the counters are not thread safe.
+ *
+ * @author kuznetsova
+ */
+
+public class LayoutStats {
+
+    private int layoutCount;
+    private int scrollCount;
+    private int obtainedViewCount;
+    private int reattachedViewCount;
+    private int measureCount;
+
+    /**
+     * @return number of layout passes
+     */
+    public int getLayoutCount() {
+        return layoutCount;
+    }
+
+    /**
+     * @return number of scroll passes
+     */
+    public int getScrollCount() {
+        return scrollCount;
+    }
+
+    /**
+     * @return number of views requested from the recycler
+     */
+    public int getObtainedViewCount() {
+        return obtainedViewCount;
+    }
+
+    /**
+     * @return number of pinned headers re-attached to the grid without rebinding
+     */
+    public int getReattachedViewCount() {
+        return reattachedViewCount;
+    }
+
+    /**
+     * @return number of measured views
+     */
+    public int getMeasureCount() {
+        return measureCount;
+    }
+
+    /**
+     * @return views requested from the recycler per layout and scroll pass
+     */
+    public float getObtainedViewsPerPass() {
+        int passCount = layoutCount + scrollCount;
+        return passCount == 0 ? 0 : (float) obtainedViewCount / passCount;
+    }
+
+    /**
+     * @return measured views per layout and scroll pass
+     */
+    public float getMeasuresPerPass() {
+        int passCount = layoutCount + scrollCount;
+        return passCount == 0 ? 0 : (float) measureCount / passCount;
+    }
+
+    public void reset() {
+        layoutCount = 0;
+        scrollCount = 0;
+        obtainedViewCount = 0;
+        reattachedViewCount = 0;
+        measureCount = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "LayoutStats{layouts=" + layoutCount + ", scrolls=" + scrollCount
+                + ", obtained=" + obtainedViewCount + ", reattached=" + reattachedViewCount
+                + ", measured=" + measureCount + "}";
+    }
+
+    /*
+    * Adds the counters of a finished pass, the pass types are the ones of ILayoutMetricsListener
+    */
+    void onPass(int passType, int obtainedViewCount, int reattachedViewCount, int measureCount) {
+        if (passType == ILayoutMetricsListener.PASS_LAYOUT) {
+            layoutCount++;
+        } else {
+            scrollCount++;
+        }
+        this.obtainedViewCount += obtainedViewCount;
+        this.reattachedViewCount += reattachedViewCount;
+        this.measureCount += measureCount;
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.xkuznetsova.shiftedgrid.component;
+
+import android.support.v7.widget.RecyclerView;
+
+import java.util.Arrays;
+
+/**
+ * Adapter of a grid with sections. Header positions are kept in a sorted primitive
+ * array, a position is resolved to its section with binary search, the last found
+ * section is cached because neighbouring positions are bound one after another.
+ *
+ * The adapter provides its sections to {@link ShiftedGridLayoutManager}. Positions
+ * and header indices of {@link IGridItem} and {@link IGridHeader} views are set
+ * before {@link #onBindGridViewHolder} is called.
+ *
+ * @author kuznetsova
+ */
+
+public abstract class SectionedGridAdapter<VH extends RecyclerView.ViewHolder> extends RecyclerView.Adapter<VH>
+        implements IGridSectionSnapshotProvider {
+
+    /* View types returned by getItemViewType by default */
+    public static final int TYPE_ITEM = 0;
+    public static final int TYPE_HEADER = 1;
+    public static final int TYPE_FOOTER = 2;
+
+    private static final int NO_SECTION = -1;
+
+    /* Never modified, setSections replaces the array, so it is handed out as a snapshot */
+    private int[] headerPositions = new int[0];
+    private int itemCount;
+    private boolean footerExists;
+
+    /* Section found by the last lookup */
+    private int cachedSection = NO_SECTION;
+
+    /**
+     * Replaces the sections. The adapter isn't notified, call one of notify* methods.
+     *
+     * @param headerPositions - positions of the headers in ascending order
+     * @param itemCount - number of all elements including headers and footer
+     * @param hasFooter - true if the last element is a footer
+     */
+    public void setSections(int[] headerPositions, int itemCount, boolean hasFooter) {
+        this.headerPositions = Arrays.copyOf(headerPositions, headerPositions.length);
+        this.itemCount = itemCount;
+        this.footerExists = hasFooter;
+        cachedSection = NO_SECTION;
+    }
+
+    /**
+     * Called after the element's position and header index are set.
+     *
+     * @param section - section of the element, -1 for elements above the first header and the footer
+     */
+    public abstract void onBindGridViewHolder(VH holder, int position, int section);
+
+    @Override
+    public final void onBindViewHolder(VH holder, int position) {
+        int section = isFooter(position) ? NO_SECTION : findSection(position);
+
+        if (IGridElement.class.isInstance(holder.itemView)) {
+            ((IGridElement) holder.itemView).setPosition(position);
+        }
+        if (IGridItem.class.isInstance(holder.itemView)) {
+            ((IGridItem) holder.itemView).setHeaderIndex(
+                    section == NO_SECTION ? IGridItem.NO_NEADER : headerPositions[section]);
+        }
+
+        onBindGridViewHolder(holder, position, section);
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        if (isFooter(position)) {
+            return TYPE_FOOTER;
+        }
+        return isHeader(position) ? TYPE_HEADER : TYPE_ITEM;
+    }
+
+    @Override
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    @Override
+    public int getSectionCount() {
+        return headerPositions.length;
+    }
+
+    @Override
+    public int getSectionHeaderPosition(int section) {
+        return headerPositions[section];
+    }
+
+    @Override
+    public int getSectionItemCount(int section) {
+        int sectionEnd = section + 1 < headerPositions.length ? headerPositions[section + 1] : getContentEnd();
+        return sectionEnd - headerPositions[section] - 1;
+    }
+
+    @Override
+    public int[] getSectionHeaderPositionsSnapshot() {
+        return headerPositions;
+    }
+
+    @Override
+    public boolean hasFooter() {
+        return footerExists;
+    }
+
+    public boolean isHeader(int position) {
+        int section = findSection(position);
+        return section != NO_SECTION && headerPositions[section] == position;
+    }
+
+    public boolean isFooter(int position) {
+        return footerExists && position == itemCount - 1;
+    }
+
+    /**
+     * @return section that contains the position, -1 if the position is above the first header
+     */
+    public int findSection(int position) {
+        int section = cachedSection;
+        if (section != NO_SECTION && section < headerPositions.length && headerPositions[section] <= position
+                && (section + 1 == headerPositions.length || position < headerPositions[section + 1])) {
+            return section;
+        }
+
+        int index = Arrays.binarySearch(headerPositions, position);
+        section = index >= 0 ? index : -index - 2; // the header above the insertion point
+        if (section != NO_SECTION) {
+            cachedSection = section;
+        }
+        return section;
+    }
+
+    private int getContentEnd() {
+        return footerExists ? itemCount - 1 : itemCount;
+    }
+
+}
@@ -6,31 +6,85 @@ package com.xkuznetsova.shiftedgrid.component;
 
 import android.content.Context;
 import android.graphics.PointF;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.v4.os.TraceCompat;
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
 import android.support.v7.widget.LinearSmoothScroller;
+import android.support.v7.widget.OrientationHelper;
 import android.support.v7.widget.RecyclerView;
 import android.util.AttributeSet;
-import android.util.SparseArray;
 import android.util.SparseIntArray;
 import android.view.View;
 import android.view.ViewGroup;
 
+import com.xkuznetsova.shiftedgrid.geometry.GeometryIndex;
+import com.xkuznetsova.shiftedgrid.geometry.SectionIndex;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
 /**
  * Places items' views in a two dimensional grid with additional left offset
  * for every second row. Supports header elements.
  *
+ * In horizontal orientation the grid is scrolled horizontally: rows become
+ * columns, every second column is shifted down and headers are vertical separators.
+ *
  * @author kuznetsova
  */
 public class ShiftedGridLayoutManager extends RecyclerView.LayoutManager {
 
-    private static final int NO_HEADER = -1;
+    public static final int HORIZONTAL = OrientationHelper.HORIZONTAL;
+    public static final int VERTICAL = OrientationHelper.VERTICAL;
 
-    /* Scroll directions */
-    private static final int DIRECTION_NONE = 0;
-    private static final int DIRECTION_UP = 1;
-    private static final int DIRECTION_DOWN = 2;
+    private static final int NO_HEADER = -1;
 
-    /* Consistent size applied to all child views */
+    /* Trace section names */
+    private static final String TRACE_LAYOUT = "ShiftedGrid OnLayout";
+    private static final String TRACE_SCROLL = "ShiftedGrid Scroll";
+    private static final String TRACE_FILL = "ShiftedGrid FillGrid";
+    private static final String TRACE_FILL_TOP = "ShiftedGrid FillTop";
+    private static final String TRACE_FILL_BOTTOM = "ShiftedGrid FillBottom";
+    private static final String TRACE_INDEX_REBUILD = "ShiftedGrid IndexRebuild";
+
+    /* Child index that adds a view after all children */
+    private static final int APPEND = -1;
+
+    /* Prefetch looks ahead for the distance scrolled within this number of frames */
+    private static final int PREFETCH_FRAMES = 3;
+    /* Upper limit of rows prefetched during a fast fling */
+    private static final int MAX_PREFETCH_ROWS = 4;
+
+    /* Geometry of a dataset with at least this number of sections is built in background */
+    private static final int ASYNC_MIN_SECTION_COUNT = 1000;
+    /* Number of positions below the anchor covered by the partial index */
+    private static final int ASYNC_PARTIAL_ITEM_COUNT = 1000;
+
+    /* Without an id resolver the anchor item is searched this far from its old position */
+    private static final int MAX_ANCHOR_SEARCH_DISTANCE = 500;
+
+    /* Smooth scroll animates at most this number of screens, farther targets are jumped to */
+    private static final int MAX_SMOOTH_SCROLL_SCREENS = 3;
+
+    /* Predicted range covers the distance scrolled within this time at the current velocity */
+    private static final float PREDICTION_SECONDS = 0.5f;
+    /* Upper limit of the predicted distance during a fast fling, in screens */
+    private static final int MAX_PREDICTED_SCREENS = 4;
+    /* Scroll velocity is estimated from scratch after a pause this long */
+    private static final long VELOCITY_RESET_NANOS = 100000000L;
+    /* Time of a frame, assumed for the first scroll after a pause */
+    private static final long FRAME_NANOS = 16666667L;
+
+    /* Headers created ahead of time: the prefetched one and the sticky one */
+    private static final int WARM_UP_HEADER_COUNT = 2;
+
+    /* Consistent width applied to all items' views, height in horizontal orientation */
     private int decoratedChildWidth;
+    /* Heights measured on the first layout, estimate the rows that weren't measured yet */
     private int decoratedChildHeight;
     private int decoratedHeaderHeight;
     private int decoratedFooterHeight;
@@ -38,28 +92,386 @@ public class ShiftedGridLayoutManager extends RecyclerView.LayoutManager {
     /* Top left position on the screen */
     private int firstVisiblePosition;
 
-    /* Columns number */
+    /* Columns number, sections may have their own */
     private int columnCount;
+    /* Section column counts set since the last layout, by section index */
+    private final SparseIntArray pendingSectionColumnCounts = new SparseIntArray();
+    /* Section column counts applied while the full index is built in background */
+    private final SparseIntArray lateSectionColumnCounts = new SparseIntArray();
 
     /* The offset that is applied to every second row*/
     private int offsetInPixels;
-    private boolean forceClearOffset;
+    /* Offsets of item rows, from 0 to offsetInPixels */
+    private IRowShiftPattern rowShiftPattern = new CyclicRowShiftPattern(2);
 
-    /* Total items count on the screen at the moment */
-    private int totalVisibleItems;
+    /* Scroll requested by scrollToPosition* and scrollToOffset, applied on the next layout */
+    private int pendingScrollPosition = RecyclerView.NO_POSITION;
+    private long pendingScrollOffset;
 
     /* Header indices mapped to number of items under them */
-    private SparseIntArray datasetInfo = new SparseIntArray();
+    private SectionIndex datasetInfo = new SectionIndex();
+    /* Dataset info has to be rebuilt from scratch on the next layout */
+    private boolean datasetInfoInvalid = true;
     /* Footer flag */
     private boolean footerExists;
 
+    /* Rows and offsets of the whole dataset */
+    private GeometryIndex geometry = new GeometryIndex();
+    /* Geometry has to be recounted before the next layout */
+    private boolean geometryInvalid = true;
+
+    /* Views of the row being laid out */
+    private View[] rowViews;
+
+    private boolean smoothScrollJumpEnabled = true;
+
+    private boolean stickyHeadersEnabled;
+    /* Header of the current section pinned to the top edge, always the last child */
+    private View stickyHeader;
+
+    /* Number of items prefetched when the grid is nested into another scrolling list */
+    private int initialPrefetchItemCount;
+
+    private RecyclerView.Adapter adapter;
+    /* Section metadata of the current adapter, null if the adapter doesn't provide it */
+    private IGridSectionProvider sectionProvider;
+    /* Header positions of the current adapter at once, null if the adapter doesn't provide them */
+    private IGridSectionSnapshotProvider sectionSnapshotProvider;
+    /* Id to position map of the current adapter, null if the adapter doesn't provide it */
+    private IGridItemIdResolver itemIdResolver;
+
+    /* Background executor of the geometry build, null to build it on the main thread */
+    private Executor geometryExecutor;
+    private Handler mainHandler;
+    /* Incremented on every dataset info rebuild, older background results are dropped */
+    private int datasetGeneration;
+    /* Number of positions covered by the partial index, NO_POSITION if the index is full */
+    private int partialItemCount = RecyclerView.NO_POSITION;
+    /* Header positions waiting to be sent to the executor */
+    private int[] snapshotHeaderPositions;
+
+    /* Stable id and offset of the top item, remembered when the whole dataset changes */
+    private long anchorItemId = RecyclerView.NO_ID;
+    private int anchorItemPosition;
+    private int anchorItemOffset;
+
+    /* Work counters accumulated from the passes, null if nobody listens */
+    private LayoutStats layoutStats;
+
+    /* Per pass metrics, null if disabled */
+    private ILayoutMetricsListener metricsListener;
+    private boolean traceEnabled;
+    /* True if stats, metrics or trace sections are enabled, checked once around a pass */
+    private boolean instrumented;
+
+    /* Counters of the current pass */
+    private long passStartNanos;
+    private long passIndexRebuildNanos;
+    private int passAttachedViewCount;
+    private int passRecycledViewCount;
+    private int passObtainedViewCount;
+    private int passReattachedViewCount;
+    private int passMeasuredViewCount;
+    private int passFilledRowCount;
+
+    /* Visible and predicted positions, null if nobody listens */
+    private IVisibleRangeListener visibleRangeListener;
+    /* The last reported range */
+    private int reportedFirstVisiblePosition = RecyclerView.NO_POSITION;
+    private int reportedLastVisiblePosition = RecyclerView.NO_POSITION;
+    private int reportedFirstPredictedPosition = RecyclerView.NO_POSITION;
+    private int reportedLastPredictedPosition = RecyclerView.NO_POSITION;
+    /* Smoothed scroll velocity in pixels per second, signed by the scroll direction */
+    private float scrollVelocity;
+    private long lastScrollNanos;
+
+    /* RecyclerView the layout manager is attached to, null if detached */
+    private RecyclerView recyclerView;
+    /* Recycled view pool sizing and warm-up */
+    private boolean poolSizingEnabled = true;
+    private boolean poolWarmUpEnabled;
+    /* View types of items, headers and footer, found among the children */
+    private int itemViewType = RecyclerView.INVALID_TYPE;
+    private int headerViewType = RecyclerView.INVALID_TYPE;
+    private int footerViewType = RecyclerView.INVALID_TYPE;
+    /* Pool sizes applied for the view types */
+    private int itemPoolSize;
+    private int headerPoolSize;
+    private int footerPoolSize;
+    /* Views to create ahead of time and views created so far */
+    private int warmUpItemCount;
+    private int warmedUpItemCount;
+    private int warmedUpHeaderCount;
+    private boolean warmUpScheduled;
+
+    /* Creates one view per idle message queue, so warm-up doesn't delay frames */
+    private final MessageQueue.IdleHandler warmUpHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            warmUpScheduled = warmUpNextView();
+            return warmUpScheduled;
+        }
+    };
+
+    /* Scroll direction, VERTICAL or HORIZONTAL */
+    private int orientation;
+
     /**
      * @param columnCount - number of columns in grid
      * @param offsetInPixels - size of additional left offset
      */
     public ShiftedGridLayoutManager(int columnCount, int offsetInPixels) {
+        this(columnCount, offsetInPixels, VERTICAL);
+    }
+
+    /**
+     * @param columnCount - number of items in a row (in a column if the grid is horizontal)
+     * @param offsetInPixels - size of additional offset of every second row
+     * @param orientation - VERTICAL or HORIZONTAL
+     */
+    public ShiftedGridLayoutManager(int columnCount, int offsetInPixels, int orientation) {
+        checkOrientation(orientation);
+        this.orientation = orientation;
         this.columnCount = columnCount;
         this.offsetInPixels = offsetInPixels;
+        this.initialPrefetchItemCount = columnCount;
+        this.rowViews = new View[columnCount];
+    }
+
+    /**
+     * Builds the section index and geometry of large datasets on the executor.
+     * Until they are ready the grid is laid out from a partial index that covers
+     * the first screen, so the first frame doesn't wait for the whole dataset.
+     * Requires an adapter that implements {@link IGridSectionProvider}, with
+     * {@link IGridSectionSnapshotProvider} sections aren't read one by one on the main thread.
+     *
+     * @param executor - background executor, null to build everything on the main thread
+     */
+    public void setGeometryExecutor(Executor executor) {
+        geometryExecutor = executor;
+    }
+
+    public Executor getGeometryExecutor() {
+        return geometryExecutor;
+    }
+
+    /**
+     * Changes the number of columns. Measured row heights are forgotten, the dataset
+     * isn't scanned again.
+     */
+    public void setColumnCount(int columnCount) {
+        if (this.columnCount == columnCount) {
+            return;
+        }
+        this.columnCount = columnCount;
+        if (getItemCount() > 0) {
+            datasetInfo.invalidateHeights(0, getItemCount());
+        }
+        geometryInvalid = true;
+        requestLayout();
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    /**
+     * Sets the number of columns of a section, applied on the next layout. Only the section's
+     * rows are recounted. Counts are kept by the section index: they don't follow a section
+     * when sections above it are inserted or removed, and they are cleared with the adapter.
+     *
+     * @param section - section index, sections are ordered by their header positions
+     * @param columnCount - number of columns, 0 to use the grid's column count
+     */
+    public void setSectionColumnCount(int section, int columnCount) {
+        pendingSectionColumnCounts.put(section, Math.max(columnCount, 0));
+        requestLayout();
+    }
+
+    /**
+     * @return column count set for the section, 0 if it uses the grid's column count
+     */
+    public int getSectionColumnCount(int section) {
+        int index = pendingSectionColumnCounts.indexOfKey(section);
+        return index >= 0 ? pendingSectionColumnCounts.valueAt(index) : geometry.getSectionColumnCount(section);
+    }
+
+    /*
+    * Applies column counts set since the last layout, rows of the changed sections are measured again
+    */
+    private void applySectionColumnCounts() {
+        for (int i = 0; i < pendingSectionColumnCounts.size(); i++) {
+            int section = pendingSectionColumnCounts.keyAt(i);
+            int columns = pendingSectionColumnCounts.valueAt(i);
+            geometry.setSectionColumnCount(section, columns);
+            if (partialItemCount != RecyclerView.NO_POSITION) { // the full index took the old counts
+                lateSectionColumnCounts.put(section, columns);
+            }
+            if (section < datasetInfo.size()) { // items' width is changed, measure their rows again
+                datasetInfo.setRowHeight(section, SectionIndex.NO_SIZE);
+                if (!geometryInvalid) {
+                    geometry.setSectionRowHeight(section, decoratedChildHeight);
+                }
+            }
+        }
+        pendingSectionColumnCounts.clear();
+    }
+
+    /**
+     * Sets offsets of item rows. By default every second row is shifted by offsetInPixels.
+     */
+    public void setRowShiftPattern(IRowShiftPattern pattern) {
+        rowShiftPattern = pattern;
+        requestLayout();
+    }
+
+    public IRowShiftPattern getRowShiftPattern() {
+        return rowShiftPattern;
+    }
+
+    /**
+     * Changes the scroll direction, the first visible position is kept.
+     *
+     * @param orientation - VERTICAL or HORIZONTAL
+     */
+    public void setOrientation(int orientation) {
+        checkOrientation(orientation);
+        if (this.orientation == orientation) {
+            return;
+        }
+        assertNotInLayoutOrScroll(null);
+
+        if (pendingScrollPosition == RecyclerView.NO_POSITION && getGridChildCount() != 0) {
+            pendingScrollPosition = firstVisiblePosition;
+            pendingScrollOffset = 0;
+        }
+        this.orientation = orientation;
+        // measured heights are useless now, the first layout measures the estimates again
+        if (getItemCount() > 0) {
+            datasetInfo.invalidateHeights(0, getItemCount());
+        }
+        removeAllViews();
+        stickyHeader = null;
+        requestLayout();
+    }
+
+    public int getOrientation() {
+        return orientation;
+    }
+
+    private static void checkOrientation(int orientation) {
+        if (orientation != HORIZONTAL && orientation != VERTICAL) {
+            throw new IllegalArgumentException("invalid orientation: " + orientation);
+        }
+    }
+
+    /**
+     * Sets the number of items to prefetch when the grid is nested into another
+     * scrolling list and is about to come into the screen. By default it is one row.
+     *
+     * @param itemCount - number of items to prefetch
+     */
+    public void setInitialPrefetchItemCount(int itemCount) {
+        initialPrefetchItemCount = itemCount;
+    }
+
+    public int getInitialPrefetchItemCount() {
+        return initialPrefetchItemCount;
+    }
+
+    /**
+     * Counts views obtained from the recycler and measured by the layout manager.
+     *
+     * @param layoutStats - counters to update, null to stop counting
+     */
+    public void setLayoutStats(LayoutStats layoutStats) {
+        this.layoutStats = layoutStats;
+        updateInstrumented();
+    }
+
+    public LayoutStats getLayoutStats() {
+        return layoutStats;
+    }
+
+    /**
+     * Reports the cost of every layout and scroll pass. Without a listener
+     * passes are not timed.
+     *
+     * With stats, metrics and tracing disabled a pass isn't timed and has no trace sections,
+     * but it still checks the trace flag around every fill phase and index rebuild, and views
+     * are still counted with plain field increments.
+     *
+     * @param listener - listener to notify, null to disable metrics
+     */
+    public void setLayoutMetricsListener(ILayoutMetricsListener listener) {
+        metricsListener = listener;
+        updateInstrumented();
+    }
+
+    /**
+     * Wraps layout, scroll, fill and index rebuild phases into trace sections,
+     * so they are visible in systrace and Perfetto captures. Disabled by default.
+     */
+    public void setTraceEnabled(boolean enabled) {
+        traceEnabled = enabled;
+        updateInstrumented();
+    }
+
+    public boolean isTraceEnabled() {
+        return traceEnabled;
+    }
+
+    private void updateInstrumented() {
+        instrumented = layoutStats != null || metricsListener != null || traceEnabled;
+    }
+
+    /**
+     * Reports the visible positions and the positions that are about to appear,
+     * predicted from the scroll velocity and the rows' heights.
+     *
+     * @param listener - listener to notify, null to stop reporting
+     */
+    public void setVisibleRangeListener(IVisibleRangeListener listener) {
+        visibleRangeListener = listener;
+        reportedFirstVisiblePosition = RecyclerView.NO_POSITION;
+        reportedLastVisiblePosition = RecyclerView.NO_POSITION;
+        reportedFirstPredictedPosition = RecyclerView.NO_POSITION;
+        reportedLastPredictedPosition = RecyclerView.NO_POSITION;
+        dispatchVisibleRange();
+    }
+
+    /**
+     * Sizes the recycled view pool to the views the grid needs: rows on the screen times
+     * the column count plus the prefetched rows for items, headers on the screen for headers.
+     * The default pool keeps 5 views per type, a fling over a wide grid recycles more
+     * and creates new views. Enabled by default.
+     */
+    public void setRecycledViewPoolSizingEnabled(boolean enabled) {
+        if (poolSizingEnabled != enabled) {
+            poolSizingEnabled = enabled;
+            requestLayout();
+        }
+    }
+
+    public boolean isRecycledViewPoolSizingEnabled() {
+        return poolSizingEnabled;
+    }
+
+    /**
+     * Creates item views for the prefetched rows and a couple of header views ahead
+     * of time, one view per idle main thread loop while the grid isn't scrolled.
+     * The views are put into the recycled view pool, without pool sizing it keeps
+     * only 5 views per type. Disabled by default.
+     */
+    public void setPoolWarmUpEnabled(boolean enabled) {
+        if (poolWarmUpEnabled != enabled) {
+            poolWarmUpEnabled = enabled;
+            requestLayout();
+        }
+    }
+
+    public boolean isPoolWarmUpEnabled() {
+        return poolWarmUpEnabled;
     }
 
     @Override
@@ -84,647 +496,1789 @@ public class ShiftedGridLayoutManager extends RecyclerView.LayoutManager {
     @Override
     public void onAdapterChanged(RecyclerView.Adapter oldAdapter, RecyclerView.Adapter newAdapter) {
         removeAllViews();
+        stickyHeader = null;
+        setAdapter(newAdapter);
+    }
+
+    @Override
+    public void onAttachedToWindow(RecyclerView view) {
+        super.onAttachedToWindow(view);
+        recyclerView = view;
+        // adapter may be set before the layout manager
+        setAdapter(view.getAdapter());
+    }
+
+    @Override
+    public void onDetachedFromWindow(RecyclerView view, RecyclerView.Recycler recycler) {
+        super.onDetachedFromWindow(view, recycler);
+        if (warmUpScheduled) {
+            Looper.myQueue().removeIdleHandler(warmUpHandler);
+            warmUpScheduled = false;
+        }
+        recyclerView = null;
+    }
+
+    private void setAdapter(RecyclerView.Adapter adapter) {
+        if (adapter == this.adapter) { // attached to a window again, the dataset info and counts are still valid
+            return;
+        }
+        this.adapter = adapter;
+        if (IGridSectionProvider.class.isInstance(adapter)) {
+            sectionProvider = (IGridSectionProvider) adapter;
+        } else {
+            sectionProvider = null;
+        }
+        if (IGridSectionSnapshotProvider.class.isInstance(adapter)) {
+            sectionSnapshotProvider = (IGridSectionSnapshotProvider) adapter;
+        } else {
+            sectionSnapshotProvider = null;
+        }
+        if (IGridItemIdResolver.class.isInstance(adapter)) {
+            itemIdResolver = (IGridItemIdResolver) adapter;
+        } else {
+            itemIdResolver = null;
+        }
+        anchorItemId = RecyclerView.NO_ID;
+        datasetInfoInvalid = true;
+
+        // sections of another adapter have nothing to do with the counts
+        geometry.clearSectionColumnCounts();
+        pendingSectionColumnCounts.clear();
+        lateSectionColumnCounts.clear();
+
+        // the pool is cleared when the adapter is replaced
+        itemViewType = RecyclerView.INVALID_TYPE;
+        headerViewType = RecyclerView.INVALID_TYPE;
+        footerViewType = RecyclerView.INVALID_TYPE;
+        itemPoolSize = 0;
+        headerPoolSize = 0;
+        footerPoolSize = 0;
+        warmedUpItemCount = 0;
+        warmedUpHeaderCount = 0;
+    }
+
+    @Override
+    public void onItemsChanged(RecyclerView recyclerView) {
+        datasetInfoInvalid = true;
+        rememberAnchorItem(recyclerView);
+    }
+
+    /*
+    * Positions of the children are lost after notifyDataSetChanged, with stable ids
+    * the top item can be found in the new dataset.
+    */
+    private void rememberAnchorItem(RecyclerView recyclerView) {
+        if (adapter == null || !adapter.hasStableIds() || getGridChildCount() == 0) {
+            return;
+        }
+        View topChild = getChildAt(0);
+        anchorItemId = recyclerView.getChildItemId(topChild);
+        anchorItemPosition = firstVisiblePosition;
+        anchorItemOffset = getDecoratedStart(topChild) - getStartAfterPadding();
+    }
+
+    /*
+    * New position of the remembered top item, NO_POSITION if it isn't in the dataset
+    */
+    private int findAnchorItemPosition(int itemCount) {
+        if (itemIdResolver != null) {
+            int position = itemIdResolver.getPositionForItemId(anchorItemId);
+            return position < itemCount ? position : RecyclerView.NO_POSITION;
+        }
+
+        // Most often a few items are added or removed above, look around the old position
+        for (int distance = 0; distance <= MAX_ANCHOR_SEARCH_DISTANCE; distance++) {
+            int below = anchorItemPosition + distance;
+            int above = anchorItemPosition - distance;
+            if (below >= itemCount && above < 0) {
+                break;
+            }
+            if (below < itemCount && adapter.getItemId(below) == anchorItemId) {
+                return below;
+            }
+            if (above >= 0 && above < itemCount && adapter.getItemId(above) == anchorItemId) {
+                return above;
+            }
+        }
+        return RecyclerView.NO_POSITION;
+    }
+
+    @Override
+    public void onItemsAdded(RecyclerView recyclerView, int positionStart, int itemCount) {
+        if (canPatchDatasetInfo()) {
+            datasetInfo.onItemsAdded(positionStart, itemCount);
+            verifyDatasetInfo();
+        }
+    }
+
+    @Override
+    public void onItemsRemoved(RecyclerView recyclerView, int positionStart, int itemCount) {
+        if (canPatchDatasetInfo()) {
+            datasetInfo.onItemsRemoved(positionStart, itemCount);
+            verifyDatasetInfo();
+        }
+    }
+
+    @Override
+    public void onItemsMoved(RecyclerView recyclerView, int from, int to, int itemCount) {
+        if (!canPatchDatasetInfo()) {
+            return;
+        }
+
+        if (itemCount != 1 || datasetInfo.isHeader(from)) { // whole sections are moved
+            datasetInfoInvalid = true;
+        } else {
+            datasetInfo.onItemMoved(from, to);
+            verifyDatasetInfo();
+        }
+    }
+
+    @Override
+    public void onItemsUpdated(RecyclerView recyclerView, int positionStart, int itemCount) {
+        if (canPatchDatasetInfo()) {
+            // updated elements keep their positions, only their types may have changed
+            verifyDatasetInfo();
+            verifyUpdatedHeaders(positionStart, itemCount);
+            // changed content may have another height
+            datasetInfo.invalidateHeights(positionStart, itemCount);
+        }
+    }
+
+    /*
+    * Dataset info is patched in place only when the adapter provides section metadata
+    * to verify the result. Otherwise element types are unknown without views - rebuild it.
+    */
+    private boolean canPatchDatasetInfo() {
+        if (datasetInfoInvalid) {
+            return false;
+        }
+        if (sectionProvider == null || partialItemCount != RecyclerView.NO_POSITION) {
+            datasetInfoInvalid = true;
+            return false;
+        }
+        return true;
+    }
+
+    /*
+    * Inserted elements are supposed to be items. If a header has appeared
+    * or disappeared the section count differs and dataset info is rebuilt on the next layout.
+    * An added or removed footer was counted as an item of the last section - rebuild it too.
+    */
+    private void verifyDatasetInfo() {
+        geometryInvalid = true;
+        if (datasetInfo.size() != sectionProvider.getSectionCount()
+                || footerExists != sectionProvider.hasFooter()) {
+            datasetInfoInvalid = true;
+        }
+    }
+
+    /*
+    * An updated item may have become a header and a header an item, the section count stays
+    * the same. Headers of the section above the updated range, of the sections in it and
+    * of the first one below it are compared with the provider's.
+    */
+    private void verifyUpdatedHeaders(int positionStart, int itemCount) {
+        if (datasetInfoInvalid) {
+            return;
+        }
+        int positionEnd = positionStart + itemCount;
+        for (int section = Math.max(datasetInfo.findSection(positionStart), 0); section < datasetInfo.size(); section++) {
+            int headerPosition = datasetInfo.getHeaderPosition(section);
+            if (headerPosition != sectionProvider.getSectionHeaderPosition(section)) {
+                datasetInfoInvalid = true;
+                return;
+            }
+            if (headerPosition >= positionEnd) {
+                return;
+            }
+        }
     }
 
     @Override
     public void onLayoutChildren(RecyclerView.Recycler recycler, RecyclerView.State state) {
-        decoratedChildWidth = getHorizontalSpaceForItemsRow() / columnCount; // do this here because in onMeaure it doesn't work correctly
+        if (!instrumented) {
+            layoutChildren(recycler, state);
+            return;
+        }
+
+        beginPass(TRACE_LAYOUT);
+        layoutChildren(recycler, state);
+        endPass(ILayoutMetricsListener.PASS_LAYOUT);
+    }
+
+    private void layoutChildren(RecyclerView.Recycler recycler, RecyclerView.State state) {
+        decoratedChildWidth = getCrossSpaceForItemsRow() / columnCount; // do this here because in onMeaure it doesn't work correctly
 
         // Scrap all views if dataset is empty
         if (state.getItemCount() == 0) {
             detachAndScrapAttachedViews(recycler);
+            stickyHeader = null;
+            dispatchVisibleRange();
             return;
         }
 
-        if (state.isPreLayout() && getChildCount() == 0) { // do nothing if the list is empty on prelayout
+        if (state.isPreLayout()) {
+            preLayoutChildren(recycler, state);
             return;
         }
 
-        achieveDatasetInfo(recycler, state);
+        if (datasetInfoInvalid) {
+            long rebuildStart = beginIndexRebuild();
+            achieveDatasetInfo(recycler, state);
+            endIndexRebuild(rebuildStart);
+        }
 
-        if (getChildCount() == 0) { // First layout - save item's and header's and footer's heights
-            View scrap = recycler.getViewForPosition(0);
+        if (getGridChildCount() == 0) { // First layout - save item's and header's and footer's heights
+            View scrap = obtainView(0, recycler);
             if (IGridHeader.class.isInstance(scrap)) {
                 addView(scrap); // measure header's height
-                measureChildWithMargins(scrap, 0, 0);
-                decoratedHeaderHeight = getDecoratedMeasuredHeight(scrap);
+                measureView(scrap, GeometryIndex.ROW_HEADER, decoratedChildWidth);
+                decoratedHeaderHeight = getDecoratedMeasuredExtent(scrap);
                 detachAndScrapView(scrap, recycler);
 
                 // measure item's height
-                scrap = recycler.getViewForPosition(1);
+                scrap = obtainView(1, recycler);
             }
 
             if (IGridItem.class.isInstance(scrap)) {
                 addView(scrap);
-                measureChildWithMargins(scrap, 0, 0);
-                decoratedChildHeight = getDecoratedMeasuredHeight(scrap);
+                measureView(scrap, GeometryIndex.ROW_ITEMS, decoratedChildWidth);
+                decoratedChildHeight = getDecoratedMeasuredExtent(scrap);
                 // for prompt
                 detachAndScrapView(scrap, recycler);
             }
 
-            if (getItemCount() != 0) {
-                scrap = recycler.getViewForPosition(getItemCount() - 1); // footer view
-                if (IGridFooter.class.isInstance(scrap)) {
-                    addView(scrap); // measure footer's height
-                    measureChildWithMargins(scrap, 0, 0);
-                    decoratedFooterHeight = getDecoratedMeasuredHeight(scrap);
-                    detachAndScrapView(scrap, recycler);
-                }
+            if (footerExists) {
+                scrap = obtainView(getItemCount() - 1, recycler); // footer view
+                addView(scrap); // measure footer's height
+                measureView(scrap, GeometryIndex.ROW_FOOTER, decoratedChildWidth);
+                decoratedFooterHeight = getDecoratedMeasuredExtent(scrap);
+                detachAndScrapView(scrap, recycler);
             }
+            geometryInvalid = true;
         }
 
+        applySectionColumnCounts();
+        updateGeometry(state);
+
         int childTopCoord;
-        if (getChildCount() == 0) { // First or empty layout
+        if (pendingScrollPosition != RecyclerView.NO_POSITION) {
+            // Requested scroll - anchor the target by its row, nothing between is laid out
+            firstVisiblePosition = Math.min(pendingScrollPosition, state.getItemCount() - 1);
+            childTopCoord = fixChildTopCoord(pendingScrollOffset);
+            pendingScrollPosition = RecyclerView.NO_POSITION;
+        } else if (getGridChildCount() == 0) { // First or empty layout
             firstVisiblePosition = 0;
             childTopCoord = 0;
         } else { // Adapter data set changes
             View topChild = getChildAt(0);
-            if (forceClearOffset) {
-                childTopCoord = 0;
-                forceClearOffset = false;
+            childTopCoord = getDecoratedStart(topChild) - getStartAfterPadding();
+
+            int anchorPosition = anchorItemId != RecyclerView.NO_ID
+                    ? findAnchorItemPosition(state.getItemCount()) : RecyclerView.NO_POSITION;
+            if (anchorPosition != RecyclerView.NO_POSITION) {
+                // the whole dataset is changed, the top item is found by its id
+                firstVisiblePosition = anchorPosition;
+                childTopCoord = anchorItemOffset;
             } else {
-                childTopCoord = getDecoratedTop(topChild);
-            }
-
-            if (!state.isPreLayout()) {
-                childTopCoord = fixChildTopCoord(childTopCoord);
+                // anchor the first view that stays, items above it could be added or removed
+                View anchor = findAnchorChild();
+                if (anchor != null) {
+                    firstVisiblePosition = getPosition(anchor);
+                    childTopCoord = getDecoratedStart(anchor) - getStartAfterPadding();
+                }
             }
 
             fixFirstVisiblePosition();
+            childTopCoord = fixChildTopCoord(childTopCoord);
         }
 
+        anchorItemId = RecyclerView.NO_ID;
+
         //Clear all attached views into the recycle bin
         detachAndScrapAttachedViews(recycler);
+        stickyHeader = null; // scrapped with the others, it is taken back from the scrap
 
         //Fill the grid for the initial layout of views
-        fillGrid(DIRECTION_NONE, childTopCoord, recycler, state, 0);
+        fillGrid(childTopCoord, recycler, state);
+        updateStickyHeader(recycler);
+        dispatchVisibleRange();
+        updateRecycledViewPool();
+
+        if (state.willRunPredictiveAnimations()) {
+            layoutDisappearingViews(recycler, state);
+        }
     }
 
-    private int fixChildTopCoord(int childTopCoord) {
-        int spaceForWholeDataset = countSpaceForTotalDataset();
-        if (getVerticalSpace() > spaceForWholeDataset) {
-            // When data set is too small to scroll vertically, adjust vertical offset
-            // and shift position to the first row
-            childTopCoord = 0;
-            firstVisiblePosition = 0;
-        } else if (childTopCoord < 0) {
-            // If top coord is too far above for the dataset - shift it down
-            int availableSpace = Math.abs(childTopCoord) + getVerticalSpace();
-            if (availableSpace > spaceForWholeDataset) {
-                childTopCoord = -(Math.abs(childTopCoord) - (availableSpace - spaceForWholeDataset));
+    /*
+    * Pre-layout runs before adapter changes are applied to the layout. The children
+    * are already at their places and the geometry still describes the old dataset,
+    * it is rebuilt in the post-layout. Only the rows that will move into the space
+    * of the removed items are added below the children, so they don't just fade in.
+    */
+    private void preLayoutChildren(RecyclerView.Recycler recycler, RecyclerView.State state) {
+        if (getGridChildCount() == 0 || geometry.getRowCount() == 0) {
+            return;
+        }
+
+        int removedSpace = 0;
+        int lastRemovedRow = -1;
+        for (int i = 0; i < getGridChildCount(); i++) {
+            LayoutParams lp = (LayoutParams) getChildAt(i).getLayoutParams();
+            int row = geometry.getRowForPosition(firstVisiblePosition + i);
+            if (lp.isItemRemoved() && row != lastRemovedRow) {
+                removedSpace += geometry.getRowHeight(row);
+                lastRemovedRow = row;
+            }
+        }
+
+        if (removedSpace > 0) {
+            fillBottom(removedSpace, recycler, state);
+        }
+    }
+
+    /*
+    * The first child that isn't removed, null if all of them are removed
+    */
+    private View findAnchorChild() {
+        for (int i = 0; i < getGridChildCount(); i++) {
+            View child = getChildAt(i);
+            LayoutParams lp = (LayoutParams) child.getLayoutParams();
+            if (!lp.isItemRemoved() && getPosition(child) != RecyclerView.NO_POSITION) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    /*
+    * Views that were on the screen and are moved out of it by the adapter changes are left
+    * in the scrap. They are laid out at their new places, so the item animator moves them
+    * out of the screen before they are recycled. Removed views are animated by RecyclerView.
+    */
+    private void layoutDisappearingViews(RecyclerView.Recycler recycler, RecyclerView.State state) {
+        List<RecyclerView.ViewHolder> scrapList = recycler.getScrapList();
+        if (scrapList.isEmpty() || getGridChildCount() == 0) {
+            return;
+        }
+
+        long scrolledSpace = countScrolledSpace();
+        // adding a view takes it out of the scrap list
+        for (int i = scrapList.size() - 1; i >= 0; i--) {
+            View view = scrapList.get(i).itemView;
+            LayoutParams lp = (LayoutParams) view.getLayoutParams();
+            int position = lp.getViewLayoutPosition();
+            if (lp.isItemRemoved() || position < 0 || position >= state.getItemCount()) {
+                continue;
+            }
+
+            addDisappearingView(view);
+            int row = geometry.getRowForPosition(position);
+            int offset = getStartAfterPadding() + clampToInt(geometry.getRowTop(row) - scrolledSpace);
+            if (geometry.getRowType(row) == GeometryIndex.ROW_ITEMS) {
+                int cellSize = getCrossSpaceForItemsRow() / geometry.getRowColumnCount(row);
+                int crossOffset = getCrossStartAfterPadding() + getRowShift(row)
+                        + (position - geometry.getRowFirstPosition(row)) * cellSize;
+                layoutItemView(view, crossOffset, offset, cellSize);
+            } else {
+                layoutHeaderOrFooterView(view, getCrossStartAfterPadding(), offset);
             }
         }
-        return childTopCoord;
+    }
+
+    /*
+    * Converts first visible position and its top coord to the scrolled space, keeps it inside
+    * the dataset and maps it back to the first visible row. Returns the row's top coord.
+    */
+    private int fixChildTopCoord(long childTopCoord) {
+        long scrolledSpace = clampScrolledSpace(geometry.getPositionTop(firstVisiblePosition) - childTopCoord);
+        int firstRow = geometry.getRowAtY(scrolledSpace);
+        firstVisiblePosition = geometry.getRowFirstPosition(firstRow);
+        return (int) (geometry.getRowTop(firstRow) - scrolledSpace);
     }
 
     @Override
     public boolean canScrollVertically() {
-        return true;
+        return isVertical();
+    }
+
+    @Override
+    public boolean canScrollHorizontally() {
+        return !isVertical();
     }
 
     @Override
     public int scrollVerticallyBy(int dy, RecyclerView.Recycler recycler, RecyclerView.State state) {
-        if (getChildCount() == 0) { // empty RecyclerView - return 0
+        return isVertical() ? scrollGridBy(dy, recycler, state) : 0;
+    }
+
+    @Override
+    public int scrollHorizontallyBy(int dx, RecyclerView.Recycler recycler, RecyclerView.State state) {
+        return isVertical() ? 0 : scrollGridBy(dx, recycler, state);
+    }
+
+    @Override
+    public void onScrollStateChanged(int state) {
+        if (state == RecyclerView.SCROLL_STATE_IDLE && scrollVelocity != 0) {
+            // nothing is about to appear anymore
+            scrollVelocity = 0;
+            dispatchVisibleRange();
+        }
+    }
+
+    private int scrollGridBy(int dy, RecyclerView.Recycler recycler, RecyclerView.State state) {
+        if (!instrumented) {
+            return scrollBy(dy, recycler, state);
+        }
+
+        beginPass(TRACE_SCROLL);
+        int scrolled = scrollBy(dy, recycler, state);
+        endPass(ILayoutMetricsListener.PASS_SCROLL);
+        return scrolled;
+    }
+
+    private int scrollBy(int dy, RecyclerView.Recycler recycler, RecyclerView.State state) {
+        if (getGridChildCount() == 0) { // empty RecyclerView - return 0
             return 0;
         }
 
-        View topView = getChildAt(0);
-        View bottomView = getChildAt(getChildCount() - 1);
+        long scrolledSpace = countScrolledSpace();
+        int delta = (int) (clampScrolledSpace(scrolledSpace + dy) - scrolledSpace);
+        if (delta == 0) {
+            return 0;
+        }
+
+        if (isScrolledOffScreen(delta)) {
+            // no row stays on the screen, they are recycled without moving them first
+            recycleGridChildren(recycler);
+        } else {
+            offsetChildren(-delta);
+            recycleViewsOutOfBounds(delta, recycler);
+        }
+
+        if (getGridChildCount() == 0) { // nothing left on the screen - start from the new first row
+            int firstRow = geometry.getRowAtY(scrolledSpace + delta);
+            firstVisiblePosition = geometry.getRowFirstPosition(firstRow);
+            fillGrid((int) (geometry.getRowTop(firstRow) - scrolledSpace - delta), recycler, state);
+        } else if (delta > 0) {
+            fillBottom(0, recycler, state);
+        } else {
+            fillTop(recycler, state);
+        }
+        updateStickyHeader(recycler);
+
+        if (visibleRangeListener != null) {
+            updateScrollVelocity(delta);
+            dispatchVisibleRange();
+        }
+
+        return delta;
+    }
 
-        int topOfTopView = getDecoratedTop(topView);
-        int bottomOfBottomView = getDecoratedBottom(bottomView);
+    @Override
+    public int computeVerticalScrollOffset(RecyclerView.State state) {
+        return isVertical() ? computeScrollOffset() : 0;
+    }
 
-        int consumedSpace = bottomOfBottomView - topOfTopView;
-        if (getChildCount() == getItemCount() && consumedSpace < getVerticalSpace()) {
+    @Override
+    public int computeVerticalScrollExtent(RecyclerView.State state) {
+        return isVertical() ? computeScrollExtent() : 0;
+    }
+
+    @Override
+    public int computeVerticalScrollRange(RecyclerView.State state) {
+        return isVertical() ? computeScrollRange() : 0;
+    }
+
+    @Override
+    public int computeHorizontalScrollOffset(RecyclerView.State state) {
+        return isVertical() ? 0 : computeScrollOffset();
+    }
+
+    @Override
+    public int computeHorizontalScrollExtent(RecyclerView.State state) {
+        return isVertical() ? 0 : computeScrollExtent();
+    }
+
+    @Override
+    public int computeHorizontalScrollRange(RecyclerView.State state) {
+        return isVertical() ? 0 : computeScrollRange();
+    }
+
+    private int computeScrollOffset() {
+        if (getGridChildCount() == 0 || geometryInvalid) {
             return 0;
         }
+        return toScrollbarUnits(countScrolledSpace());
+    }
+
+    private int computeScrollExtent() {
+        if (getGridChildCount() == 0 || geometryInvalid) {
+            return 0;
+        }
+        return Math.max(toScrollbarUnits(Math.min(getScrollSpace(), geometry.getTotalHeight())), 1);
+    }
+
+    private int computeScrollRange() {
+        if (getGridChildCount() == 0 || geometryInvalid) {
+            return 0;
+        }
+        // headers, ceil(count / columnCount) rows of every section and footer
+        return toScrollbarUnits(geometry.getTotalHeight());
+    }
+
+    /*
+    * Scrollbar values are ints, the coordinates of a grid that is higher than
+    * Integer.MAX_VALUE pixels are scaled down by the same power of two.
+    */
+    private int toScrollbarUnits(long coordinate) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(geometry.getTotalHeight()) - 31);
+        return (int) (coordinate >> shift);
+    }
+
+    @Override
+    public int getRowCountForAccessibility(RecyclerView.Recycler recycler, RecyclerView.State state) {
+        if (geometryInvalid) {
+            return super.getRowCountForAccessibility(recycler, state);
+        }
+        return isVertical() ? geometry.getRowCount() : geometry.getMaxColumnCount();
+    }
+
+    @Override
+    public int getColumnCountForAccessibility(RecyclerView.Recycler recycler, RecyclerView.State state) {
+        if (geometryInvalid) {
+            return super.getColumnCountForAccessibility(recycler, state);
+        }
+        return isVertical() ? geometry.getMaxColumnCount() : geometry.getRowCount();
+    }
+
+    /*
+    * Row and column of the item are taken from the geometry, headers span all columns
+    * and are marked as headings. In horizontal orientation rows and columns are swapped.
+    */
+    @Override
+    public void onInitializeAccessibilityNodeInfoForItem(RecyclerView.Recycler recycler, RecyclerView.State state,
+                                                         View host, AccessibilityNodeInfoCompat info) {
+        int position = ((LayoutParams) host.getLayoutParams()).getViewLayoutPosition();
+        if (!isPositionInGeometry(position)) {
+            super.onInitializeAccessibilityNodeInfoForItem(recycler, state, host, info);
+            return;
+        }
+
+        int row = geometry.getRowForPosition(position);
+        int rowType = geometry.getRowType(row);
+        int column = 0;
+        int columnSpan = geometry.getMaxColumnCount();
+        if (rowType == GeometryIndex.ROW_ITEMS) {
+            column = position - geometry.getRowFirstPosition(row);
+            columnSpan = 1;
+        }
+        boolean heading = rowType == GeometryIndex.ROW_HEADER;
+
+        if (isVertical()) {
+            info.setCollectionItemInfo(AccessibilityNodeInfoCompat.CollectionItemInfoCompat.obtain(
+                    row, 1, column, columnSpan, heading, false));
+        } else {
+            info.setCollectionItemInfo(AccessibilityNodeInfoCompat.CollectionItemInfoCompat.obtain(
+                    column, columnSpan, row, 1, heading, false));
+        }
+    }
+
+    /**
+     * @return row of the position in the grid, -1 if the grid isn't laid out yet
+     */
+    public int getRowForPosition(int position) {
+        return isPositionInGeometry(position) ? geometry.getRowForPosition(position) : RecyclerView.NO_POSITION;
+    }
+
+    /**
+     * @return column of the position in its row, 0 for headers and footer,
+     * -1 if the grid isn't laid out yet
+     */
+    public int getColumnForPosition(int position) {
+        if (!isPositionInGeometry(position)) {
+            return RecyclerView.NO_POSITION;
+        }
+        return position - geometry.getRowFirstPosition(geometry.getRowForPosition(position));
+    }
+
+    /**
+     * @return section of the position, -1 for positions above the first header, the footer
+     * and if the grid isn't laid out yet
+     */
+    public int getSectionForPosition(int position) {
+        if (!isPositionInGeometry(position)) {
+            return SectionIndex.NO_SECTION;
+        }
+        return geometry.getSectionForRow(geometry.getRowForPosition(position));
+    }
+
+    /**
+     * @return adapter position at the row and column, -1 if there is no element there
+     * or the grid isn't laid out yet
+     */
+    public int getPositionAt(int row, int column) {
+        if (geometryInvalid || row < 0 || row >= geometry.getRowCount()
+                || column < 0 || column >= geometry.getRowSize(row)) {
+            return RecyclerView.NO_POSITION;
+        }
+        return geometry.getRowFirstPosition(row) + column;
+    }
+
+    /*
+    * True if the geometry describes the position. The partial geometry of a large dataset
+    * covers only the first positions.
+    */
+    private boolean isPositionInGeometry(int position) {
+        int count = partialItemCount != RecyclerView.NO_POSITION ? partialItemCount : getItemCount();
+        return !geometryInvalid && position >= 0 && position < count;
+    }
+
+    @Override
+    public void smoothScrollToPosition(RecyclerView recyclerView, RecyclerView.State state, int position) {
+        if (getGridChildCount() == 0 || position < 0 || position >= getItemCount()) {
+            return;
+        }
+
+        if (smoothScrollJumpEnabled) {
+            long distance = countDistanceToPosition(position);
+            int animatedDistance = getScrollSpace();
+            while (Math.abs(distance) > (long) animatedDistance * MAX_SMOOTH_SCROLL_SCREENS) {
+                // Jump close to the target at once, the rows between are never laid out.
+                // A jump further than int pixels takes a few scrollBy calls.
+                int jump = clampToInt(distance > 0 ? distance - animatedDistance : distance + animatedDistance);
+                recyclerView.scrollBy(isVertical() ? 0 : jump, isVertical() ? jump : 0);
+
+                long remaining = countDistanceToPosition(position);
+                if (remaining == distance) { // nothing was scrolled
+                    break;
+                }
+                distance = remaining;
+            }
+        }
+
+        GridSmoothScroller scroller = new GridSmoothScroller(recyclerView.getContext());
+        scroller.setTargetPosition(position);
+        startSmoothScroll(scroller);
+    }
+
+    /**
+     * Limits smooth scroll duration: if the target is more than a few screens away,
+     * the grid jumps to the screen next to the target and animates only the last screen.
+     * Enabled by default.
+     *
+     * @param enabled - false to animate the whole distance
+     */
+    public void setSmoothScrollJumpEnabled(boolean enabled) {
+        smoothScrollJumpEnabled = enabled;
+    }
+
+    public boolean isSmoothScrollJumpEnabled() {
+        return smoothScrollJumpEnabled;
+    }
+
+    /**
+     * Pins the header of the first visible section to the top edge. The next
+     * section's header pushes it out. The pinned header is the same view that was
+     * laid out in the grid, it isn't bound again while its section stays on the screen.
+     */
+    public void setStickyHeadersEnabled(boolean enabled) {
+        if (stickyHeadersEnabled != enabled) {
+            stickyHeadersEnabled = enabled;
+            requestLayout();
+        }
+    }
+
+    public boolean isStickyHeadersEnabled() {
+        return stickyHeadersEnabled;
+    }
+
+    @Override
+    public void scrollToPosition(int position) {
+        scrollToPositionWithOffset(position, 0);
+    }
+
+    /**
+     * Scrolls to the position and places the top of its row at the given distance
+     * from the top edge of the grid. The grid is laid out once, only around the target.
+     *
+     * @param position - adapter position to scroll to
+     * @param offsetInPixels - distance between the top edge and the position's row
+     */
+    public void scrollToPositionWithOffset(int position, int offsetInPixels) {
+        if (position < 0 || position >= getItemCount()) {
+            return;
+        }
+
+        pendingScrollPosition = position;
+        pendingScrollOffset = offsetInPixels;
+        // Trigger a new view layout
+        requestLayout();
+    }
+
+    /**
+     * Scrolls the grid so that the given absolute coordinate of the content
+     * is at the top edge. The coordinate is clamped to the dataset.
+     *
+     * @param scrollOffsetInPixels - absolute coordinate of the content
+     */
+    public void scrollToOffset(long scrollOffsetInPixels) {
+        if (getItemCount() == 0) {
+            return;
+        }
 
-        int topViewPosition = ((IGridElement) topView).getPosition();
-        int bottomViewPosition = ((IGridElement) bottomView).getPosition();
+        if (geometryInvalid || getGridChildCount() == 0) {
+            // the first element's row starts at zero, the coordinate is resolved by the layout
+            pendingScrollPosition = 0;
+            pendingScrollOffset = -scrollOffsetInPixels;
+            requestLayout();
+            return;
+        }
 
-        boolean topBoundReached = topViewPosition == 0;
-        boolean bottomBoundReached = bottomViewPosition >= state.getItemCount() - 1;
+        // anchor the row at the coordinate, so the offset stays small
+        long scrolledSpace = clampScrolledSpace(scrollOffsetInPixels);
+        int row = geometry.getRowAtY(scrolledSpace);
+        scrollToPositionWithOffset(geometry.getRowFirstPosition(row),
+                (int) (geometry.getRowTop(row) - scrolledSpace));
+    }
 
-        int delta;
+    @Override
+    public Parcelable onSaveInstanceState() {
+        SavedState state = new SavedState();
+        if (pendingScrollPosition != RecyclerView.NO_POSITION) { // layout hasn't happened yet
+            state.anchorPosition = pendingScrollPosition;
+            state.anchorOffset = pendingScrollOffset;
+        } else if (getGridChildCount() != 0) {
+            state.anchorPosition = firstVisiblePosition;
+            state.anchorOffset = getDecoratedStart(getChildAt(0)) - getStartAfterPadding();
+        } else {
+            state.anchorPosition = RecyclerView.NO_POSITION;
+        }
+        state.columnCount = columnCount;
+        state.offsetInPixels = offsetInPixels;
+        return state;
+    }
+
+    @Override
+    public void onRestoreInstanceState(Parcelable state) {
+        if (!SavedState.class.isInstance(state)) {
+            return;
+        }
+
+        // The saved configuration is not restored: the app may have created this instance with
+        // another column count, e.g. for landscape. The anchor is a position, it is valid with any
+        // column count, the first layout goes directly to the anchor's row.
+        SavedState savedState = (SavedState) state;
+        pendingScrollPosition = savedState.anchorPosition;
+        pendingScrollOffset = savedState.anchorOffset;
+        requestLayout();
+    }
+
+    @Override
+    public void collectAdjacentPrefetchPositions(int dx, int dy, RecyclerView.State state,
+                                                 LayoutPrefetchRegistry layoutPrefetchRegistry) {
+        int delta = isVertical() ? dy : dx;
+        if (getGridChildCount() == 0 || delta == 0 || geometryInvalid) {
+            return;
+        }
+
+        // Distance from the screen edge to the next row in the scroll direction
+        int row;
+        int distance;
+        if (delta > 0) {
+            int lastRow = geometry.getRowForPosition(firstVisiblePosition + getGridChildCount() - 1);
+            row = lastRow + 1;
+            distance = getDecoratedStart(getChildAt(getGridChildCount() - 1)) + geometry.getRowHeight(lastRow)
+                    - getEndAfterPadding();
+        } else {
+            row = geometry.getRowForPosition(firstVisiblePosition) - 1;
+            distance = getStartAfterPadding() - getDecoratedStart(getChildAt(0));
+        }
+        distance = Math.max(distance, 0);
 
-        if (dy > 0) { // content scrolls to the top
-            if (bottomBoundReached) {
-                int bottomOffset;
-                if (bottomOfBottomView <= getHeight() - getPaddingBottom()) {
-                    bottomOffset = getVerticalSpace() - getDecoratedBottom(bottomView) + getPaddingBottom();
+        // The next row is always prefetched, a fast fling reaches more rows within a few frames
+        int reach = Math.abs(delta) * PREFETCH_FRAMES;
+        int step = delta > 0 ? 1 : -1;
+        for (int rows = 0; rows < MAX_PREFETCH_ROWS && row >= 0 && row < geometry.getRowCount(); rows++) {
+            if (rows > 0 && distance > reach) {
+                break;
+            }
+
+            int position = geometry.getRowFirstPosition(row);
+            int rowSize = geometry.getRowSize(row);
+            for (int i = 0; i < rowSize && position + i < state.getItemCount(); i++) {
+                layoutPrefetchRegistry.addPosition(position + i, distance);
+            }
+
+            distance += geometry.getRowHeight(row);
+            row += step;
+        }
+    }
+
+    @Override
+    public void collectInitialPrefetchPositions(int adapterItemCount,
+                                                LayoutPrefetchRegistry layoutPrefetchRegistry) {
+        int firstPosition = getGridChildCount() == 0 || geometryInvalid ? 0 : firstVisiblePosition;
+        int lastPosition = Math.min(firstPosition + initialPrefetchItemCount, adapterItemCount);
+        for (int position = firstPosition; position < lastPosition; position++) {
+            layoutPrefetchRegistry.addPosition(position, 0);
+        }
+    }
+
+    @Override
+    public boolean supportsPredictiveItemAnimations() {
+        return true;
+    }
+
+    private void fillGrid(int top, RecyclerView.Recycler recycler, RecyclerView.State state) {
+        if (traceEnabled) {
+            TraceCompat.beginSection(TRACE_FILL);
+        }
+        fixFirstVisiblePosition();
+
+        // Layout visible rows, the grid has no children here
+        int row = geometry.getRowForPosition(firstVisiblePosition);
+        int topOffset = getStartAfterPadding() + top;
+        int bottom = getEndAfterPadding();
+
+        while (row < geometry.getRowCount() && topOffset < bottom) {
+            topOffset += fillRow(row, topOffset, APPEND, recycler, state);
+            row++;
+        }
+
+        if (traceEnabled) {
+            TraceCompat.endSection();
+        }
+    }
+
+    /*
+    * Removes rows that were scrolled out of the screen. Views of a row may have
+    * different heights, so the row's bounds are taken from the geometry.
+    */
+    private void recycleViewsOutOfBounds(int delta, RecyclerView.Recycler recycler) {
+        if (delta > 0) { // content moved up
+            // rows leave in order, only the first one is looked up by its position
+            for (int row = geometry.getRowForPosition(firstVisiblePosition); getGridChildCount() > 0; row++) {
+                int rowStart = getDecoratedStart(getChildAt(0));
+                int rowSize = Math.min(geometry.getRowSize(row), getGridChildCount());
+                // a header is pinned as soon as it crosses the top edge, other rows leave when they are off it
+                boolean pinned = stickyHeadersEnabled && geometry.getRowType(row) == GeometryIndex.ROW_HEADER
+                        && getGridChildCount() > rowSize;
+                if (pinned ? rowStart >= getStartAfterPadding()
+                        : rowStart + geometry.getRowHeight(row) > getStartAfterPadding()) {
+                    break;
+                }
+                if (pinned) {
+                    // the header leaves the grid, but it is still needed on top of it
+                    pinHeader(getChildAt(0), recycler);
                 } else {
-                    bottomOffset = getVerticalSpace() - (getDecoratedBottom(bottomView) + decoratedChildHeight)
-                            + getPaddingBottom();
+                    for (int i = 0; i < rowSize; i++) {
+                        removeAndRecycleViewAt(0, recycler);
+                    }
+                    passRecycledViewCount += rowSize;
                 }
-                delta = Math.max(-dy, bottomOffset);
-            } else {
-                delta = -dy;
+                firstVisiblePosition += rowSize;
             }
-        } else { // content scrolls to the bottom
-            if (topBoundReached) {
-                int topOffset = -getDecoratedTop(topView) + getPaddingTop();
-                delta = Math.min(-dy, topOffset);
-            } else {
-                delta = -dy;
+        } else { // content moved down
+            int bottom = getEndAfterPadding();
+            int lastRow = geometry.getRowForPosition(firstVisiblePosition + getGridChildCount() - 1);
+            for (; getGridChildCount() > 0; lastRow--) {
+                int rowStartIndex = geometry.getRowFirstPosition(lastRow) - firstVisiblePosition;
+                if (getDecoratedStart(getChildAt(rowStartIndex)) < bottom) {
+                    break;
+                }
+                passRecycledViewCount += getGridChildCount() - rowStartIndex;
+                for (int i = getGridChildCount() - 1; i >= rowStartIndex; i--) {
+                    removeAndRecycleViewAt(i, recycler);
+                }
             }
         }
-        offsetChildrenVertical(delta);
+    }
+
+    /*
+    * True if all rows leave the screen when the content is scrolled by the delta
+    */
+    private boolean isScrolledOffScreen(int delta) {
+        if (delta > 0) {
+            int lastRow = geometry.getRowForPosition(firstVisiblePosition + getGridChildCount() - 1);
+            return getLastRowEnd(lastRow) - delta <= getStartAfterPadding();
+        }
+        return getDecoratedStart(getChildAt(0)) - delta >= getEndAfterPadding();
+    }
+
+    /*
+    * Recycles all children of the grid at once, the sticky header stays
+    */
+    private void recycleGridChildren(RecyclerView.Recycler recycler) {
+        passRecycledViewCount += getGridChildCount();
+        for (int i = getGridChildCount() - 1; i >= 0; i--) {
+            removeAndRecycleViewAt(i, recycler);
+        }
+    }
+
+    /*
+    * End coord of the last row in the grid, its views may be lower than the row
+    */
+    private int getLastRowEnd(int lastRow) {
+        int lastRowStartIndex = geometry.getRowFirstPosition(lastRow) - firstVisiblePosition;
+        return getDecoratedStart(getChildAt(lastRowStartIndex)) + geometry.getRowHeight(lastRow);
+    }
+
+    /*
+    * Appends rows that came into the screen from below. Extra space is filled
+    * below the bottom edge.
+    */
+    private void fillBottom(int extraSpace, RecyclerView.Recycler recycler, RecyclerView.State state) {
+        int lastRow = geometry.getRowForPosition(firstVisiblePosition + getGridChildCount() - 1);
+        int topOffset = getLastRowEnd(lastRow);
+        int bottom = getEndAfterPadding() + extraSpace;
+        if (traceEnabled) {
+            TraceCompat.beginSection(TRACE_FILL_BOTTOM);
+        }
+
+        for (int row = lastRow + 1; row < geometry.getRowCount() && topOffset < bottom; row++) {
+            topOffset += fillRow(row, topOffset, APPEND, recycler, state);
+        }
 
-        int absDelta = Math.abs(delta);
-        if (dy > 0) {
-            if (getDecoratedBottom(topView) < 0 && !bottomBoundReached) {
-                fillGrid(DIRECTION_DOWN, recycler, state, absDelta);
-            } else if (!bottomBoundReached) {
-                fillGrid(DIRECTION_NONE, recycler, state, absDelta);
-            }
-        } else {
-            if (getDecoratedTop(topView) > 0 && !topBoundReached) {
-                fillGrid(DIRECTION_UP, recycler, state, absDelta);
-            } else if (!topBoundReached) {
-                fillGrid(DIRECTION_NONE, recycler, state, absDelta);
+        if (traceEnabled) {
+            TraceCompat.endSection();
+        }
+    }
+
+    /*
+    * Prepends rows that came into the screen from above
+    */
+    private void fillTop(RecyclerView.Recycler recycler, RecyclerView.State state) {
+        int firstRow = geometry.getRowForPosition(firstVisiblePosition);
+        int bottomOffset = getDecoratedStart(getChildAt(0));
+        if (traceEnabled) {
+            TraceCompat.beginSection(TRACE_FILL_TOP);
+        }
+
+        for (int row = firstRow - 1; row >= 0 && bottomOffset > getStartAfterPadding(); row--) {
+            if (stickyHeader != null && getPosition(stickyHeader) == geometry.getRowFirstPosition(row)
+                    && bottomOffset - geometry.getRowHeight(row) < getStartAfterPadding()) {
+                break; // the pinned header returns to the grid when its row is below the top edge
             }
+            bottomOffset -= fillRow(row, bottomOffset, 0, recycler, state);
+            firstVisiblePosition = geometry.getRowFirstPosition(row);
         }
 
-        return -delta;
+        if (traceEnabled) {
+            TraceCompat.endSection();
+        }
     }
 
-    @Override
-    public void smoothScrollToPosition(RecyclerView recyclerView, RecyclerView.State state, int position) {
-        if (getChildCount() == 0) {
-            return;
+    /*
+    * Lays out the row's views. They are added starting from the child index,
+    * APPEND adds them after all children. An appended row is placed below the edge,
+    * a prepended one - above it. Returns the row's height.
+    */
+    private int fillRow(int row, int edge, int childIndex,
+                        RecyclerView.Recycler recycler, RecyclerView.State state) {
+        int position = geometry.getRowFirstPosition(row);
+        //Item space beyond the data set, don't attempt to add a view
+        int rowSize = Math.min(geometry.getRowSize(row), state.getItemCount() - position);
+        int rowType = geometry.getRowType(row);
+        int cellSize = rowType == GeometryIndex.ROW_ITEMS
+                ? getCrossSpaceForItemsRow() / geometry.getRowColumnCount(row) : decoratedChildWidth;
+
+        if (rowViews.length < rowSize) {
+            rowViews = new View[rowSize];
         }
 
-        LinearSmoothScroller scroller = new LinearSmoothScroller(recyclerView.getContext()) {
-            @Override
-            public PointF computeScrollVectorForPosition(int targetPosition) {
-                int intermediateHeaders = 0;
-                int verticalItemsDelta = 0;
-
-                int targetHeaderId = findHeaderId(targetPosition);
-                int currentHeaderId = findHeaderId(firstVisiblePosition);
-
-                int lowerHeader = Math.max(targetPosition, firstVisiblePosition);
-                int upperHeader = Math.min(targetPosition, firstVisiblePosition);
-
-                // go through all intermediate groups
-                for (int headerIndex = datasetInfo.indexOfKey(upperHeader) + 1;
-                     headerIndex < datasetInfo.indexOfKey(lowerHeader); headerIndex++) {
-                    int itemsUnderHeader = datasetInfo.get(datasetInfo.keyAt(headerIndex));
-                    verticalItemsDelta += itemsUnderHeader / columnCount;
-                    intermediateHeaders++;
-                }
+        // Add views and measure the new ones
+        boolean measured = false;
+        int measuredHeight = 0;
+        for (int i = 0; i < rowSize; i++) {
+            View currentView;
+            if (stickyHeader != null && getPosition(stickyHeader) == position + i) {
+                // The pinned header comes back to its place in the grid, it is already measured
+                currentView = stickyHeader;
+                stickyHeader = null;
+                detachView(currentView);
+                attachView(currentView, childIndex == APPEND ? getGridChildCount() : childIndex + i);
+                passReattachedViewCount++;
+            } else {
+                int index = childIndex == APPEND ? getGridChildCount() : childIndex + i;
+                currentView = obtainView(position + i, recycler);
+                addView(currentView, index);
+                measureView(currentView, rowType, cellSize);
+                measured = true;
+            }
 
-                int curPosInGroup = firstVisiblePosition - currentHeaderId;
-                int targetPosInGroup = targetPosition - targetHeaderId;
-                if (targetHeaderId > currentHeaderId) { // target is lower than current
-                    int itemsUnderCurrentHeader = datasetInfo.get(currentHeaderId);
+            rowViews[i] = currentView;
+            passAttachedViewCount++;
+            measuredHeight = Math.max(measuredHeight, getDecoratedMeasuredExtent(currentView));
+        }
 
-                    verticalItemsDelta += ((itemsUnderCurrentHeader - curPosInGroup) / columnCount
-                            + targetPosInGroup / columnCount);
-                    intermediateHeaders++;
-                } else { // target is upper
-                    int itemsUnderTargetHeader = datasetInfo.get(currentHeaderId);
+        passFilledRowCount++;
 
-                    verticalItemsDelta += curPosInGroup / columnCount + (itemsUnderTargetHeader - targetPosInGroup) / columnCount;
-                    intermediateHeaders++;
-                    intermediateHeaders = -intermediateHeaders;
+        // in pre-layout measured heights belong to the old dataset, the index has the new one
+        int rowHeight = measured && !state.isPreLayout()
+                ? applyMeasuredRowHeight(row, rowType, measuredHeight) : geometry.getRowHeight(row);
+        int topOffset = childIndex == APPEND ? edge : edge - rowHeight;
 
-                    verticalItemsDelta = -verticalItemsDelta;
-                }
+        int leftOffset = getCrossStartAfterPadding();
+        if (rowType == GeometryIndex.ROW_ITEMS) {
+            leftOffset += getRowShift(row);
+        }
 
-                return new PointF(0, verticalItemsDelta * decoratedChildHeight + intermediateHeaders * decoratedHeaderHeight + (footerExists ? decoratedFooterHeight : 0));
+        for (int i = 0; i < rowSize; i++) {
+            if (rowType == GeometryIndex.ROW_ITEMS) {
+                layoutItemView(rowViews[i], leftOffset, topOffset, cellSize);
+                leftOffset += cellSize;
+            } else {
+                layoutHeaderOrFooterView(rowViews[i], getCrossStartAfterPadding(), topOffset);
             }
-        };
-
-        scroller.setTargetPosition(position);
-        startSmoothScroll(scroller);
-    }
-
-    @Override
-    public void scrollToPosition(int position) {
-        if (position >= getItemCount()) {
-            return;
+            rowViews[i] = null;
         }
 
-        // Ignore current scroll offset
-        forceClearOffset = true;
-        // Set requested position as first visible
-        firstVisiblePosition = position;
-        // Trigger a new view layout
-        requestLayout();
+        return rowHeight;
     }
 
-    @Override
-    public boolean supportsPredictiveItemAnimations() {
-        return false;
+    private int getRowShift(int row) {
+        int shift = rowShiftPattern.getRowShift(geometry.getSectionForRow(row),
+                geometry.getRowInSection(row), offsetInPixels);
+        return Math.max(0, Math.min(shift, offsetInPixels));
     }
 
-    private void fillGrid(int direction, RecyclerView.Recycler recycler, RecyclerView.State state, int dy) {
-        fillGrid(direction, 0, recycler, state, dy);
+    /*
+    * Refines the estimated row height with the measured one. Item rows of a section
+    * are as high as the highest of them measured so far.
+    */
+    private int applyMeasuredRowHeight(int row, int rowType, int measuredHeight) {
+        int rowHeight = geometry.getRowHeight(row);
+        int section = geometry.getSectionForRow(row);
+
+        switch (rowType) {
+            case GeometryIndex.ROW_FOOTER:
+                if (measuredHeight != rowHeight) {
+                    decoratedFooterHeight = measuredHeight;
+                    geometry.setFooterHeight(measuredHeight);
+                }
+                return measuredHeight;
+            case GeometryIndex.ROW_HEADER:
+                if (measuredHeight != rowHeight) {
+                    datasetInfo.setHeaderHeight(section, measuredHeight);
+                    geometry.setSectionHeaderHeight(section, measuredHeight);
+                }
+                return measuredHeight;
+            default:
+                int sectionRowHeight = datasetInfo.getRowHeight(section);
+                if (sectionRowHeight != SectionIndex.NO_SIZE && measuredHeight <= sectionRowHeight) {
+                    return rowHeight;
+                }
+                datasetInfo.setRowHeight(section, measuredHeight);
+                geometry.setSectionRowHeight(section, measuredHeight);
+                return measuredHeight;
+        }
     }
 
-    private void fillGrid(int direction, int top, RecyclerView.Recycler recycler, RecyclerView.State state, int dy) {
-        fixFirstVisiblePosition();
+    /*
+    * cellSize is the item's size across the scroll direction, headers and footers
+    * take the whole row.
+    */
+    private void measureView(View view, int rowType, int cellSize) {
+        LayoutParams lp = (LayoutParams) view.getLayoutParams();
+        if (rowType != GeometryIndex.ROW_ITEMS) {
+            lp.width = isVertical() ? LayoutParams.MATCH_PARENT : LayoutParams.WRAP_CONTENT;
+            lp.height = isVertical() ? LayoutParams.WRAP_CONTENT : LayoutParams.MATCH_PARENT;
+        } else if (isVertical()) {
+            lp.width = cellSize;
+        } else {
+            lp.width = LayoutParams.WRAP_CONTENT;
+            lp.height = cellSize;
+        }
+        measureChild(view);
+    }
 
-        SparseArray<View> viewCache = new SparseArray<>(getChildCount());
-        int startLeftOffset = getPaddingLeft();
-        int startTopOffset = getPaddingTop() + top;
+    private void measureChild(View view) {
+        measureChildWithMargins(view, 0, 0);
+        passMeasuredViewCount++;
+    }
 
-        if (getChildCount() != 0) {
-            final View topView = getChildAt(0);
-            startTopOffset = getDecoratedTop(topView) + getPaddingTop();
+    /*
+    * Gets a bound view from the recycler.
+    */
+    private View obtainView(int position, RecyclerView.Recycler recycler) {
+        passObtainedViewCount++;
+        return recycler.getViewForPosition(position);
+    }
 
-            // Cache all views by their existing position
-            for (int i = 0; i < getChildCount(); i++) {
-                int position = positionOfIndex(i);
-                final View child = getChildAt(i);
-                viewCache.put(position, child);
-            }
+    private void layoutItemView(View itemView, int crossOffset, int offset, int cellSize) {
+        layoutInGrid(itemView, crossOffset, offset,
+                crossOffset + cellSize,
+                offset + getDecoratedMeasuredExtent(itemView));
+    }
 
-            // Temporarily detach all views.
-            for (int i = 0; i < viewCache.size(); i++) {
-                detachView(viewCache.valueAt(i));
-            }
+    private void layoutHeaderOrFooterView(View view, int crossOffset, int offset) {
+        layoutInGrid(view, crossOffset, offset,
+                getCrossSpaceForHeaderOrFooter(),
+                offset + getDecoratedMeasuredExtent(view));
+    }
 
-            switch (direction) {
-                case DIRECTION_UP:
-                    startTopOffset = getPaddingTop() + countTopOffsetDeltaUp(getDecoratedTop(topView));
-                    break;
-                case DIRECTION_DOWN:
-                    startTopOffset = getPaddingTop() + countTopOffsetDeltaDown(getDecoratedTop(topView));
-                    break;
-                default:
-                    // do nothing
-            }
+    /*
+    * Lays out the view by its bounds across and along the scroll direction
+    */
+    private void layoutInGrid(View view, int crossStart, int start, int crossEnd, int end) {
+        if (isVertical()) {
+            layoutDecorated(view, crossStart, start, crossEnd, end);
+        } else {
+            layoutDecorated(view, start, crossStart, end, crossEnd);
         }
+    }
 
-        // Layout visible items
-        int leftOffset = startLeftOffset;
-        int topOffset = startTopOffset;
-
-        int index = 0;
-        int visibleItems = countCurrentVisibleItemCount(topOffset);
+    /*
+    * Pins the header of the first visible section once its row crosses the top edge,
+    * or removes the pinned header if the section's header is fully in the grid.
+    */
+    private void updateStickyHeader(RecyclerView.Recycler recycler) {
+        if (!stickyHeadersEnabled || getGridChildCount() == 0) {
+            recycleStickyHeader(recycler);
+            return;
+        }
 
-        for (int i = 0; i < visibleItems; i++) {
-            int nextPosition = positionOfIndex(index++);
+        long scrolledSpace = countScrolledSpace();
+        int section = geometry.getSectionForRow(geometry.getRowAtY(scrolledSpace));
+        if (section == SectionIndex.NO_SECTION) {
+            recycleStickyHeader(recycler);
+            return;
+        }
 
-            if (nextPosition < 0 || nextPosition >= state.getItemCount()) {
-                //Item space beyond the data set, don't attempt to add a view
-                break;
-            }
+        int headerPosition = datasetInfo.getHeaderPosition(section);
+        if (headerPosition == firstVisiblePosition && getGridChildCount() > 1
+                && getDecoratedStart(getChildAt(0)) < getStartAfterPadding()) {
+            // the header's row crosses the top edge, the header stays at the edge instead
+            pinHeader(getChildAt(0), recycler);
+            firstVisiblePosition++;
+        } else if (headerPosition >= firstVisiblePosition) {
+            recycleStickyHeader(recycler);
+            return;
+        }
 
-            // Layout this position
-            View currentView = viewCache.get(nextPosition);
+        if (stickyHeader == null || getPosition(stickyHeader) != headerPosition) {
+            // Jumped into the section, its header wasn't laid out
+            View header = obtainView(headerPosition, recycler);
+            addView(header);
+            measureView(header, GeometryIndex.ROW_HEADER, decoratedChildWidth);
+            pinHeader(header, recycler);
+        }
 
-            if (currentView == null) {
-                currentView = recycler.getViewForPosition(nextPosition);
+        // The end of the section pushes the header out
+        int lastPosition = headerPosition + datasetInfo.getItemCount(section);
+        int sectionBottom = clampToInt(geometry.getPositionTop(lastPosition)
+                + geometry.getRowHeight(geometry.getRowForPosition(lastPosition)) - scrolledSpace);
+        int top = getStartAfterPadding() + Math.min(0, sectionBottom - getDecoratedMeasuredExtent(stickyHeader));
+        layoutHeaderOrFooterView(stickyHeader, getCrossStartAfterPadding(), top);
+    }
 
-                if (IGridHeader.class.isInstance(currentView)) {
-                    if (nextPosition != firstVisiblePosition) { // header must be lower than previous items
-                        topOffset += decoratedChildHeight;
-                    }
-                    layoutHeaderView(currentView, getPaddingLeft(), topOffset);
-                } else if (IGridFooter.class.isInstance(currentView)) {
-                    topOffset += decoratedChildHeight;
-                    layoutFooterView(currentView, getPaddingLeft(), topOffset);
-                } else { // item
-                    int positionInGroup;
-                    int headerId = ((IGridItem) currentView).getHeaderIndex();
-
-                    if (datasetInfo.size() == 0 || headerId == NO_HEADER) { // headers disabled
-                        positionInGroup = nextPosition;
-                    } else {
-                        positionInGroup = nextPosition - (headerId + 1);
-                    }
+    /*
+    * Makes the attached header view the sticky one, the previous sticky header is recycled.
+    */
+    private void pinHeader(View header, RecyclerView.Recycler recycler) {
+        recycleStickyHeader(recycler);
+        detachView(header);
+        attachView(header); // after the grid's children, so it is drawn above them
+        stickyHeader = header;
+    }
 
-                    if (positionInGroup % columnCount == 0) { // first elem in a row
-                        if (nextPosition != firstVisiblePosition) {
-                            if (positionInGroup == 0) {
-                                topOffset += decoratedHeaderHeight;
-                            } else {
-                                topOffset += decoratedChildHeight;
-                            }
-                        }
-                        leftOffset = startLeftOffset;
-                        if ((positionInGroup / columnCount) % 2 != 0) { // first elem in every second row
-                            leftOffset += offsetInPixels;
-                        }
-                    } else {
-                        leftOffset += decoratedChildWidth;
-                    }
+    private void recycleStickyHeader(RecyclerView.Recycler recycler) {
+        if (stickyHeader != null) {
+            removeAndRecycleView(stickyHeader, recycler);
+            stickyHeader = null;
+            passRecycledViewCount++;
+        }
+    }
 
-                    layoutItemView(currentView, leftOffset, topOffset);
-                }
+    /*
+    * Estimates the velocity from the scrolled distance and the time since the previous scroll.
+    * A fling scrolls once per frame, so it is smoothed over the last frames.
+    */
+    private void updateScrollVelocity(int delta) {
+        long now = System.nanoTime();
+        long elapsed = now - lastScrollNanos;
+        lastScrollNanos = now;
+
+        boolean reset = elapsed > VELOCITY_RESET_NANOS || (scrollVelocity > 0) != (delta > 0);
+        float velocity = delta * 1e9f / (reset ? FRAME_NANOS : Math.max(elapsed, 1));
+        scrollVelocity = reset ? velocity : (scrollVelocity + velocity) / 2;
+    }
 
-            } else {
-                // Re-attach the cached view at its new index
-                attachView(currentView);
-                viewCache.remove(nextPosition);
+    /*
+    * Reports the visible rows' positions and the rows the grid scrolls into within
+    * PREDICTION_SECONDS, at least the next row. Nothing is reported if the range hasn't changed.
+    */
+    private void dispatchVisibleRange() {
+        if (visibleRangeListener == null || geometryInvalid) {
+            return;
+        }
 
-                topOffset = getDecoratedTop(currentView);
-                leftOffset = getDecoratedLeft(currentView);
+        int firstVisible = RecyclerView.NO_POSITION;
+        int lastVisible = RecyclerView.NO_POSITION;
+        int firstPredicted = RecyclerView.NO_POSITION;
+        int lastPredicted = RecyclerView.NO_POSITION;
+        if (getGridChildCount() != 0 && geometry.getRowCount() != 0) {
+            long scrolledSpace = countScrolledSpace();
+            int firstRow = geometry.getRowAtY(scrolledSpace);
+            int lastRow = geometry.getRowAtY(scrolledSpace + getScrollSpace() - 1);
+            firstVisible = geometry.getRowFirstPosition(firstRow);
+            lastVisible = getRowLastPosition(lastRow);
+
+            long distance = (long) Math.min(Math.abs(scrollVelocity) * PREDICTION_SECONDS,
+                    (float) getScrollSpace() * MAX_PREDICTED_SCREENS);
+            if (scrollVelocity > 0 && lastRow + 1 < geometry.getRowCount()) {
+                int row = geometry.getRowAtY(scrolledSpace + getScrollSpace() - 1 + distance);
+                firstPredicted = lastVisible + 1;
+                lastPredicted = getRowLastPosition(Math.max(row, lastRow + 1));
+            } else if (scrollVelocity < 0 && firstRow > 0) {
+                int row = geometry.getRowAtY(scrolledSpace - distance);
+                firstPredicted = geometry.getRowFirstPosition(Math.min(row, firstRow - 1));
+                lastPredicted = firstVisible - 1;
             }
-
         }
 
-        totalVisibleItems = index - 1;
-
-        // Recycle all views that are not reattached
-        for (int i=0; i < viewCache.size(); i++) {
-            final View removingView = viewCache.valueAt(i);
-            recycler.recycleView(removingView);
+        if (firstVisible == reportedFirstVisiblePosition && lastVisible == reportedLastVisiblePosition
+                && firstPredicted == reportedFirstPredictedPosition && lastPredicted == reportedLastPredictedPosition) {
+            return;
         }
-
+        reportedFirstVisiblePosition = firstVisible;
+        reportedLastVisiblePosition = lastVisible;
+        reportedFirstPredictedPosition = firstPredicted;
+        reportedLastPredictedPosition = lastPredicted;
+        visibleRangeListener.onVisibleRangeChanged(firstVisible, lastVisible, firstPredicted, lastPredicted);
     }
 
-    private int countTopOffsetDeltaDown(int topOffset) {
-        int position = firstVisiblePosition;
-
-        int lastHeight = getItemHeight(firstVisiblePosition);
-        int k = topOffset + lastHeight;
+    /*
+    * Sizes the pool for the view types found on the screen and schedules the warm-up.
+    * A type that isn't on the screen yet is sized after a later layout.
+    */
+    private void updateRecycledViewPool() {
+        if (recyclerView == null || adapter == null || (!poolSizingEnabled && !poolWarmUpEnabled)) {
+            return;
+        }
 
-        while (k < 0) {
-            lastHeight = getItemHeight(position);
-            k += lastHeight;
-            position += countPositionOffset(DIRECTION_DOWN, position);
+        for (int i = 0; i < getGridChildCount(); i++) {
+            View child = getChildAt(i);
+            int rowType = geometry.getRowType(geometry.getRowForPosition(getPosition(child)));
+            if (rowType == GeometryIndex.ROW_ITEMS) {
+                itemViewType = getItemViewType(child);
+            } else if (rowType == GeometryIndex.ROW_HEADER) {
+                headerViewType = getItemViewType(child);
+            } else {
+                footerViewType = getItemViewType(child);
+            }
         }
 
-        k -= lastHeight;
-        firstVisiblePosition = position;
-        fixFirstVisiblePosition();
+        int prefetchItemCount = MAX_PREFETCH_ROWS * geometry.getMaxColumnCount();
+        // partially visible rows at both edges
+        int rowsOnScreen = getScrollSpace() / Math.max(decoratedChildHeight, 1) + 2;
+        int sectionsOnScreen = getScrollSpace() / Math.max(decoratedHeaderHeight + decoratedChildHeight, 1) + 2;
+        int itemCount = rowsOnScreen * geometry.getMaxColumnCount() + prefetchItemCount;
+        int headerCount = sectionsOnScreen + WARM_UP_HEADER_COUNT;
+
+        if (poolSizingEnabled) {
+            RecyclerView.RecycledViewPool pool = recyclerView.getRecycledViewPool();
+            if (itemViewType != RecyclerView.INVALID_TYPE && itemPoolSize != itemCount) {
+                itemPoolSize = itemCount;
+                pool.setMaxRecycledViews(itemViewType, itemPoolSize);
+            }
+            if (headerViewType != RecyclerView.INVALID_TYPE && headerPoolSize != headerCount) {
+                headerPoolSize = headerCount;
+                pool.setMaxRecycledViews(headerViewType, headerPoolSize);
+            }
+            if (footerViewType != RecyclerView.INVALID_TYPE && footerPoolSize != 1) {
+                footerPoolSize = 1;
+                pool.setMaxRecycledViews(footerViewType, footerPoolSize);
+            }
+        }
 
-        return k;
+        warmUpItemCount = prefetchItemCount;
+        if (poolWarmUpEnabled && !warmUpScheduled && hasViewsToWarmUp()) {
+            warmUpScheduled = true;
+            Looper.myQueue().addIdleHandler(warmUpHandler);
+        }
     }
 
-    private int countTopOffsetDeltaUp(int topOffset) {
-        int k = topOffset;
-        int position = firstVisiblePosition;
+    private boolean hasViewsToWarmUp() {
+        return itemViewType != RecyclerView.INVALID_TYPE && warmedUpItemCount < warmUpItemCount
+                || headerViewType != RecyclerView.INVALID_TYPE && warmedUpHeaderCount < WARM_UP_HEADER_COUNT;
+    }
 
-        while (k > 0) {
-            if (position == 0) {
-                firstVisiblePosition = 0;
-                return k;
-            }
-            position += countPositionOffset(DIRECTION_UP, position);
-            k -= getItemHeight(position);
+    /*
+    * Creates a view that is missing in the pool. Returns false if there is nothing
+    * more to create, true to be called on the next idle loop.
+    */
+    private boolean warmUpNextView() {
+        if (!poolWarmUpEnabled || recyclerView == null || adapter == null || !hasViewsToWarmUp()) {
+            return false;
+        }
+        if (recyclerView.getScrollState() != RecyclerView.SCROLL_STATE_IDLE) {
+            return true; // scrolling frames go first
         }
 
-        firstVisiblePosition = position;
-
-        return k;
+        int viewType;
+        if (itemViewType != RecyclerView.INVALID_TYPE && warmedUpItemCount < warmUpItemCount) {
+            viewType = itemViewType;
+            warmedUpItemCount++;
+        } else {
+            viewType = headerViewType;
+            warmedUpHeaderCount++;
+        }
+        recyclerView.getRecycledViewPool().putRecycledView(adapter.createViewHolder(recyclerView, viewType));
+        return hasViewsToWarmUp();
     }
 
-    private boolean isHeader(int position) {
-        return datasetInfo.get(position, NO_HEADER) >= 0;
+    private int getRowLastPosition(int row) {
+        return geometry.getRowFirstPosition(row) + geometry.getRowSize(row) - 1;
     }
 
-    private boolean isFooter(int position) {
-        return footerExists && position == getItemCount() - 1;
+    /*
+    * Number of children laid out in the grid, without the sticky header
+    */
+    private int getGridChildCount() {
+        return stickyHeader == null ? getChildCount() : getChildCount() - 1;
     }
 
-    private int getItemHeight(int position) {
-        if (isHeader(position)) {
-            return decoratedHeaderHeight;
-        }
-        if (isFooter(position)) {
-            return decoratedFooterHeight;
-        }
-        return decoratedChildHeight;
+    /*
+    * If firstVisiblePosition is not the first in a row move it to the first in a row
+    */
+    private void fixFirstVisiblePosition() {
+        firstVisiblePosition = geometry.getRowStartPosition(firstVisiblePosition);
     }
 
-    private void layoutItemView(View itemView, int leftOffset, int topOffset) {
-        addView(itemView);
-
-        measureChildWithMargins(itemView, 0, 0);
-        layoutDecorated(itemView, leftOffset, topOffset,
-                leftOffset + decoratedChildWidth,
-                topOffset + decoratedChildHeight);
+    /*
+    * Space scrolled above the top edge: absolute top of the first visible row minus
+    * the part of the row that is still visible.
+    */
+    private long countScrolledSpace() {
+        int topOffset = getDecoratedStart(getChildAt(0)) - getStartAfterPadding();
+        return geometry.getPositionTop(firstVisiblePosition) - topOffset;
     }
 
-    private void layoutHeaderView(View view, int leftOffset, int topOffset) {
-        addView(view);
-
-        LayoutParams lp = (LayoutParams) view.getLayoutParams();
+    /*
+    * Exact distance the grid has to be scrolled to bring the position's row
+    * to the top edge, or as close to it as the dataset allows.
+    */
+    private long countDistanceToPosition(int position) {
+        return clampScrolledSpace(geometry.getPositionTop(position)) - countScrolledSpace();
+    }
 
-        lp.width = LayoutParams.MATCH_PARENT;
-        lp.height = LayoutParams.WRAP_CONTENT;
+    private long clampScrolledSpace(long scrolledSpace) {
+        return geometry.clampScrollOffset(scrolledSpace, getScrollSpace());
+    }
 
-        measureChildWithMargins(view, 0, 0);
-        layoutDecorated(view, leftOffset, topOffset,
-                getHorizontalSpaceForHeaderOrFooter(),
-                topOffset + decoratedHeaderHeight);
+    private static int clampToInt(long value) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(value, Integer.MAX_VALUE));
     }
 
-    private void layoutFooterView(View view, int leftOffset, int topOffset) {
-        addView(view);
+    private void updateGeometry(RecyclerView.State state) {
+        if (geometryInvalid) {
+            long rebuildStart = beginIndexRebuild();
+            if (partialItemCount == RecyclerView.NO_POSITION) {
+                geometry.build(datasetInfo, state.getItemCount(), footerExists, columnCount,
+                        decoratedHeaderHeight, decoratedChildHeight, decoratedFooterHeight);
+            } else {
+                geometry.build(datasetInfo, partialItemCount, false, columnCount,
+                        decoratedHeaderHeight, decoratedChildHeight, decoratedFooterHeight);
+            }
+            geometryInvalid = false;
+            endIndexRebuild(rebuildStart);
+        }
 
-        LayoutParams lp = (LayoutParams) view.getLayoutParams();
+        if (snapshotHeaderPositions != null) {
+            submitGeometryBuild(state.getItemCount());
+        }
+    }
 
-        lp.width = LayoutParams.MATCH_PARENT;
-        lp.height = LayoutParams.WRAP_CONTENT;
+    /*
+    * Builds the full index from the snapshot in background. Estimated heights are known
+    * only after the first measure, so the build is submitted here and not with the snapshot.
+    */
+    private void submitGeometryBuild(final int itemCount) {
+        final int[] headerPositions = snapshotHeaderPositions;
+        snapshotHeaderPositions = null;
+
+        final int generation = datasetGeneration;
+        final boolean footer = footerExists;
+        final int contentEnd = footer ? itemCount - 1 : itemCount;
+        final int columns = columnCount;
+        final int headerHeight = decoratedHeaderHeight;
+        final int rowHeight = decoratedChildHeight;
+        final int footerHeight = decoratedFooterHeight;
+        final int buildOrientation = orientation;
+        final SectionIndex sections = new SectionIndex();
+        final GeometryIndex fullGeometry = new GeometryIndex();
+        fullGeometry.copySectionColumnCounts(geometry);
+        if (mainHandler == null) {
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
 
-        measureChildWithMargins(view, 0, 0);
-        layoutDecorated(view, leftOffset, topOffset,
-                getHorizontalSpaceForHeaderOrFooter(),
-                topOffset + decoratedFooterHeight);
+        geometryExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int section = 0; section < headerPositions.length; section++) {
+                    sections.append(headerPositions[section],
+                            countSectionItems(headerPositions, section, contentEnd));
+                }
+                fullGeometry.build(sections, itemCount, footer, columns, headerHeight, rowHeight, footerHeight);
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (columns != columnCount || buildOrientation != orientation
+                                || headerHeight != decoratedHeaderHeight || rowHeight != decoratedChildHeight) {
+                            // the grid was reconfigured meanwhile, the result has the old rows
+                            resubmitGeometryBuild(generation, headerPositions);
+                        } else {
+                            applyFullGeometry(generation, sections, fullGeometry);
+                        }
+                    }
+                });
+            }
+        });
     }
 
     /*
-    * If the new item count in an adapter is much smaller than it was before,
-    * move firstVisiblePosition to correct place.
-    *
-    * If firstVisiblePosition is not the first in a row move it to the first in a row
+    * Sends the same snapshot to the executor again on the next layout, with the current configuration
     */
-    private void fixFirstVisiblePosition() {
-        if (firstVisiblePosition < 0) {
-            firstVisiblePosition = 0;
+    private void resubmitGeometryBuild(int generation, int[] headerPositions) {
+        if (generation != datasetGeneration || datasetInfoInvalid) {
             return;
         }
+        snapshotHeaderPositions = headerPositions;
+        // the new build copies the current counts
+        lateSectionColumnCounts.clear();
+        requestLayout();
+    }
 
-        int maxFirstIndex = getItemCount() - (getTotalVisibleItems() - 1);
-
-        if (maxFirstIndex < 0) {
-            // we now have less items in adapter then there were on the screen
-            // in the previous layout pass - go to the beginning of the list
-            firstVisiblePosition = 0;
+    /*
+    * Swaps the partial index with the full one. Heights measured meanwhile are carried over.
+    */
+    private void applyFullGeometry(int generation, SectionIndex sections, GeometryIndex fullGeometry) {
+        if (generation != datasetGeneration || datasetInfoInvalid) { // dataset has changed, it's rebuilt anyway
             return;
         }
 
-        if (firstVisiblePosition > maxFirstIndex) {
-            firstVisiblePosition = maxFirstIndex;
+        for (int i = 0; i < lateSectionColumnCounts.size(); i++) {
+            fullGeometry.setSectionColumnCount(lateSectionColumnCounts.keyAt(i), lateSectionColumnCounts.valueAt(i));
         }
+        lateSectionColumnCounts.clear();
 
-        // correct first visible position (if it is not first in row)
-        if (datasetInfo.size() == 0) {
-            int res = firstVisiblePosition % columnCount;
-            if (res != 0) {
-                firstVisiblePosition -= res;
+        int leadingRowHeight = datasetInfo.getRowHeight(SectionIndex.NO_SECTION);
+        if (leadingRowHeight != SectionIndex.NO_SIZE) {
+            sections.setRowHeight(SectionIndex.NO_SECTION, leadingRowHeight);
+            fullGeometry.setSectionRowHeight(SectionIndex.NO_SECTION, leadingRowHeight);
+        }
+        for (int section = 0; section < datasetInfo.size(); section++) {
+            int headerHeight = datasetInfo.getHeaderHeight(section);
+            if (headerHeight != SectionIndex.NO_SIZE) {
+                sections.setHeaderHeight(section, headerHeight);
+                fullGeometry.setSectionHeaderHeight(section, headerHeight);
             }
-        } else {
-            int headerId = findHeaderId(firstVisiblePosition);
-            int posInGroup = firstVisiblePosition - headerId - 1;
-            int res = posInGroup % columnCount;
-            if (headerId != firstVisiblePosition && res != 0) {
-                firstVisiblePosition -= res;
+            int rowHeight = datasetInfo.getRowHeight(section);
+            if (rowHeight != SectionIndex.NO_SIZE) {
+                sections.setRowHeight(section, rowHeight);
+                fullGeometry.setSectionRowHeight(section, rowHeight);
             }
         }
+        fullGeometry.setFooterHeight(decoratedFooterHeight);
+
+        datasetInfo = sections;
+        geometry = fullGeometry;
+        partialItemCount = RecyclerView.NO_POSITION;
+        requestLayout();
     }
 
-    private int countCurrentVisibleItemCount(int topOffset) {
-        int availableSpace = getVerticalSpace() + decoratedChildHeight - topOffset;
+    private void beginPass(String traceSection) {
+        if (traceEnabled) {
+            TraceCompat.beginSection(traceSection);
+        }
+        passStartNanos = metricsListener != null ? System.nanoTime() : 0;
+        passIndexRebuildNanos = 0;
+        passAttachedViewCount = 0;
+        passRecycledViewCount = 0;
+        passObtainedViewCount = 0;
+        passReattachedViewCount = 0;
+        passMeasuredViewCount = 0;
+        passFilledRowCount = 0;
+    }
 
-        if (datasetInfo.size() == 0) {
-            return ((int) Math.ceil((float) availableSpace / decoratedChildHeight) + 1) * columnCount;
+    private void endPass(int passType) {
+        if (layoutStats != null) {
+            layoutStats.onPass(passType, passObtainedViewCount, passReattachedViewCount,
+                    passMeasuredViewCount);
+        }
+        if (metricsListener != null) {
+            metricsListener.onLayoutPass(passType, System.nanoTime() - passStartNanos,
+                    passAttachedViewCount, passRecycledViewCount, passObtainedViewCount,
+                    passFilledRowCount, passIndexRebuildNanos);
+        }
+        if (traceEnabled) {
+            TraceCompat.endSection();
         }
+    }
 
-        int index = firstVisiblePosition;
-        int curItemsCount = 0;
+    /*
+    * Returns the start time of the index rebuild, 0 if the pass isn't timed
+    */
+    private long beginIndexRebuild() {
+        if (!instrumented) {
+            return 0;
+        }
+        if (traceEnabled) {
+            TraceCompat.beginSection(TRACE_INDEX_REBUILD);
+        }
+        return metricsListener != null ? System.nanoTime() : 0;
+    }
 
-        while (availableSpace > 0) {
-            if (index == getItemCount() - 1 && footerExists) { // footer
-                index++;
-                break;
-            } else if (datasetInfo.get(index, NO_HEADER) >= 0) { // header
-                curItemsCount = datasetInfo.get(index);
-                availableSpace -= decoratedHeaderHeight;
-                index++;
-            } else { // item
-                if (curItemsCount == 0) {
-                    curItemsCount = datasetInfo.get(findHeaderId(index));
-                }
-                availableSpace -= decoratedChildHeight;
-                if (curItemsCount > columnCount) {
-                    index += columnCount;
-                    curItemsCount -= columnCount;
-                } else {
-                    index += curItemsCount;
-                }
-            }
+    private void endIndexRebuild(long rebuildStart) {
+        if (!instrumented) {
+            return;
+        }
+        if (metricsListener != null) {
+            passIndexRebuildNanos += System.nanoTime() - rebuildStart;
+        }
+        if (traceEnabled) {
+            TraceCompat.endSection();
         }
+    }
 
-        return index - firstVisiblePosition;
+    private boolean isVertical() {
+        return orientation == VERTICAL;
     }
 
-    private int getTotalVisibleItems() {
-        if (datasetInfo.size() == 0) {
-            return (int) Math.ceil((float) getVerticalSpace() / decoratedChildWidth * columnCount);
-        }
-        return totalVisibleItems;
+    /*
+    * Sizes and coordinates along the scroll direction. In horizontal orientation
+    * rows are columns and their heights are widths.
+    */
+    private int getScrollSpace() {
+        return getEndAfterPadding() - getStartAfterPadding();
     }
 
-    // Map view index to adapter's position
-    private int positionOfIndex(int childIndex) {
-        return firstVisiblePosition + childIndex;
+    private int getStartAfterPadding() {
+        return isVertical() ? getPaddingTop() : getPaddingLeft();
     }
 
-    private int getVerticalSpace() {
-        return getHeight() - getPaddingTop() - getPaddingBottom();
+    private int getEndAfterPadding() {
+        return isVertical() ? getHeight() - getPaddingBottom() : getWidth() - getPaddingRight();
     }
 
-    private int getHorizontalSpaceForItemsRow() {
-        return getHorizontalSpaceForHeaderOrFooter() - offsetInPixels;
+    private int getDecoratedStart(View view) {
+        return isVertical() ? getDecoratedTop(view) : getDecoratedLeft(view);
     }
 
-    private int getHorizontalSpaceForHeaderOrFooter() {
-        return getWidth() - getPaddingLeft() - getPaddingRight();
+    private int getDecoratedMeasuredExtent(View view) {
+        return isVertical() ? getDecoratedMeasuredHeight(view) : getDecoratedMeasuredWidth(view);
     }
 
-    private int countPositionOffset(int direction, int startPosition) {
-        if (direction == DIRECTION_NONE) {
-            return 0;
+    private void offsetChildren(int offset) {
+        if (isVertical()) {
+            offsetChildrenVertical(offset);
+        } else {
+            offsetChildrenHorizontal(offset);
         }
+    }
 
-        if (datasetInfo.size() == 0) { // no headers
-            return direction == DIRECTION_DOWN ? columnCount : -columnCount;
-        }
+    /*
+    * Sizes and coordinates across the scroll direction
+    */
+    private int getCrossSpaceForItemsRow() {
+        return getCrossSpaceForHeaderOrFooter() - offsetInPixels;
+    }
+
+    private int getCrossSpaceForHeaderOrFooter() {
+        return isVertical() ? getWidth() - getPaddingLeft() - getPaddingRight()
+                : getHeight() - getPaddingTop() - getPaddingBottom();
+    }
 
-        boolean isHeader = datasetInfo.indexOfKey(startPosition) >= 0;
+    private int getCrossStartAfterPadding() {
+        return isVertical() ? getPaddingLeft() : getPaddingTop();
+    }
 
-        if (direction == DIRECTION_DOWN) {
-            if (isHeader) {
-                return 1;
-            } else {
-                for (int i = 1; i < columnCount; i++) {
-                    if (datasetInfo.indexOfKey(startPosition + i) >= 0) { // header within next columnCount - 1 elems
-                        return i;
-                    }
-                }
-                return columnCount;
+    /*
+    * Takes the header positions of all sections, a provider's snapshot is taken as is,
+    * otherwise they are copied. The dataset info gets only the sections above the first
+    * screen's end, the rest of the index is built in background.
+    */
+    private void achievePartialDatasetInfo(int sectionCount, int itemCount) {
+        if (sectionSnapshotProvider != null) {
+            snapshotHeaderPositions = sectionSnapshotProvider.getSectionHeaderPositionsSnapshot();
+        } else {
+            snapshotHeaderPositions = new int[sectionCount];
+            for (int section = 0; section < sectionCount; section++) {
+                snapshotHeaderPositions[section] = sectionProvider.getSectionHeaderPosition(section);
             }
-        } else { // direction up
-            if (isHeader) { // current is header
-                int prevHeaderIndex = datasetInfo.indexOfKey(startPosition) - 1;
-                if (prevHeaderIndex < 0) {
-                    return 0;
-                }
-                int prevItemsNumber = datasetInfo.get(datasetInfo.keyAt(prevHeaderIndex));
-                int rest = prevItemsNumber % columnCount;
-                if (rest == 0) {
-                    return -columnCount;
-                } else {
-                    return -rest;
-                }
-            } else { // current is item
-                if (datasetInfo.indexOfKey(startPosition - 1) < 0) { // previous is item
-                    return -columnCount;
-                } else { // previous is header
-                    return -1;
-                }
+        }
+        footerExists = sectionProvider.hasFooter();
+        // the next full index takes the current counts
+        lateSectionColumnCounts.clear();
+
+        int anchor = pendingScrollPosition != RecyclerView.NO_POSITION ? pendingScrollPosition : firstVisiblePosition;
+        int contentEnd = footerExists ? itemCount - 1 : itemCount;
+        partialItemCount = Math.max(0, Math.min(anchor + ASYNC_PARTIAL_ITEM_COUNT, contentEnd));
+        for (int section = 0; section < snapshotHeaderPositions.length; section++) {
+            int headerPosition = snapshotHeaderPositions[section];
+            if (headerPosition >= partialItemCount) {
+                break;
             }
+            int sectionItemCount = countSectionItems(snapshotHeaderPositions, section, contentEnd);
+            datasetInfo.append(headerPosition, Math.min(sectionItemCount, partialItemCount - headerPosition - 1));
         }
     }
 
+    /*
+    * Items of a section are all elements up to the next header or the end of the content
+    */
+    private static int countSectionItems(int[] headerPositions, int section, int contentEnd) {
+        int sectionEnd = section + 1 < headerPositions.length ? headerPositions[section + 1] : contentEnd;
+        return sectionEnd - headerPositions[section] - 1;
+    }
+
     private void achieveDatasetInfo(RecyclerView.Recycler recycler, RecyclerView.State state) {
+        datasetInfoInvalid = false;
+        geometryInvalid = true;
         datasetInfo.clear();
         footerExists = false;
+        datasetGeneration++;
+        partialItemCount = RecyclerView.NO_POSITION;
+        snapshotHeaderPositions = null;
+
+        if (sectionProvider != null) { // no need to create views, adapter knows its sections
+            int sectionCount = sectionProvider.getSectionCount();
+            if (geometryExecutor != null && sectionCount >= ASYNC_MIN_SECTION_COUNT) {
+                achievePartialDatasetInfo(sectionCount, state.getItemCount());
+                return;
+            }
+            for (int section = 0; section < sectionCount; section++) {
+                datasetInfo.append(sectionProvider.getSectionHeaderPosition(section),
+                        sectionProvider.getSectionItemCount(section));
+            }
+            footerExists = sectionProvider.hasFooter();
+            return;
+        }
 
+        // Fallback - find out element types from their views
         int curHeaderPosition = NO_HEADER;
+        int curItemsCount = 0;
         for (int i = 0; i < state.getItemCount(); i++) {
-            View view = recycler.getViewForPosition(i);
+            View view = obtainView(i, recycler);
             if (IGridHeader.class.isInstance(view)) {
+                if (curHeaderPosition != NO_HEADER) {
+                    datasetInfo.append(curHeaderPosition, curItemsCount);
+                }
                 curHeaderPosition = i;
-                datasetInfo.put(curHeaderPosition, 0);
+                curItemsCount = 0;
             } else if (IGridItem.class.isInstance(view)) {
                 if (curHeaderPosition != NO_HEADER) {
-                    datasetInfo.put(curHeaderPosition, datasetInfo.get(curHeaderPosition) + 1);
+                    curItemsCount++;
                 }
             } else if (IGridFooter.class.isInstance(view)) {
                 footerExists = true;
             }
         }
+        if (curHeaderPosition != NO_HEADER) {
+            datasetInfo.append(curHeaderPosition, curItemsCount);
+        }
     }
 
-    private int countSpaceForTotalDataset() {
-        int totalSpace;
-        if (datasetInfo.size() == 0) { // no headers
-            totalSpace = getChildCount() * decoratedChildHeight;
-        } else {
-            totalSpace = datasetInfo.size() * decoratedHeaderHeight;
-            for (int i = 0; i < datasetInfo.size(); i++) {
-                int key = datasetInfo.keyAt(i);
-                totalSpace += (Math.ceil((float) datasetInfo.get(key) / columnCount) * decoratedChildHeight);
+    /*
+    * Scrolls by the exact distance to the target taken from the geometry, so there are
+    * no seek steps past the target and no correction passes.
+    */
+    private class GridSmoothScroller extends LinearSmoothScroller {
+
+        GridSmoothScroller(Context context) {
+            super(context);
+        }
+
+        @Override
+        public PointF computeScrollVectorForPosition(int targetPosition) {
+            if (getGridChildCount() == 0 || targetPosition >= getItemCount()) {
+                return null;
             }
+            float distance = countDistanceToPosition(targetPosition);
+            return isVertical() ? new PointF(0, distance) : new PointF(distance, 0);
         }
 
-        if (footerExists) {
-            totalSpace += decoratedFooterHeight;
+        @Override
+        protected int getVerticalSnapPreference() {
+            return SNAP_TO_START;
         }
 
-        return totalSpace;
+        @Override
+        protected int getHorizontalSnapPreference() {
+            return SNAP_TO_START;
+        }
+
+        @Override
+        protected void updateActionForInterimTarget(Action action) {
+            if (getGridChildCount() == 0) {
+                stop();
+                return;
+            }
+
+            // the rest of a distance further than int pixels is scrolled by the next action
+            int distance = clampToInt(countDistanceToPosition(getTargetPosition()));
+            if (distance == 0) { // the target is as close as it can be
+                stop();
+                return;
+            }
+
+            mInterimTargetDx = isVertical() ? 0 : distance;
+            mInterimTargetDy = isVertical() ? distance : 0;
+            action.update(mInterimTargetDx, mInterimTargetDy,
+                    calculateTimeForScrolling(Math.abs(distance)), mLinearInterpolator);
+        }
     }
 
-    private int findHeaderId(int itemId) {
-        if (datasetInfo.indexOfKey(itemId) >= 0) {
-            return itemId;
+    /**
+     * Scroll position kept across configuration changes and process recreation.
+     */
+    public static class SavedState implements Parcelable {
+
+        /* First visible position and the distance between its row and the top edge */
+        int anchorPosition;
+        long anchorOffset;
+
+        /* Configuration the state was saved with, the restored instance keeps its own */
+        int columnCount;
+        int offsetInPixels;
+
+        SavedState() {
         }
 
-        for (int i = 0; i + 1 < datasetInfo.size(); i++) {
-            if (datasetInfo.keyAt(i) < itemId && datasetInfo.keyAt(i + 1) > itemId) {
-                return datasetInfo.keyAt(i);
-            }
+        SavedState(Parcel in) {
+            anchorPosition = in.readInt();
+            anchorOffset = in.readLong();
+            columnCount = in.readInt();
+            offsetInPixels = in.readInt();
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
         }
 
-        return datasetInfo.keyAt(datasetInfo.size() - 1);
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeInt(anchorPosition);
+            dest.writeLong(anchorOffset);
+            dest.writeInt(columnCount);
+            dest.writeInt(offsetInPixels);
+        }
+
+        public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+            @Override
+            public SavedState createFromParcel(Parcel in) {
+                return new SavedState(in);
+            }
+
+            @Override
+            public SavedState[] newArray(int size) {
+                return new SavedState[size];
+            }
+        };
     }
 
     private class LayoutParams extends RecyclerView.LayoutParams {
@@ -4,19 +4,17 @@ import android.support.v7.widget.RecyclerView;
 import android.view.View;
 import android.view.ViewGroup;
 
+import com.xkuznetsova.shiftedgrid.component.SectionedGridAdapter;
+
 import java.util.List;
 
 /**
  * @author kuznetsova
  */
 
-class MainAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
-
-    private static final int TYPE_ITEM = 0;
-    private static final int TYPE_HEADER = 1;
+class MainAdapter extends SectionedGridAdapter<RecyclerView.ViewHolder> {
 
     private List<String> items;
-    private List<Integer> headerPositions;
 
     private static class ItemViewHolder extends RecyclerView.ViewHolder {
 
@@ -35,15 +33,12 @@ class MainAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     MainAdapter(List<String> items, List<Integer> headerPositions) {
         super();
         this.items = items;
-        this.headerPositions = headerPositions;
-    }
 
-    @Override
-    public int getItemViewType(int position) {
-        if (headerPositions.contains(position)) {
-            return TYPE_HEADER;
+        int[] positions = new int[headerPositions.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = headerPositions.get(i);
         }
-        return TYPE_ITEM;
+        setSections(positions, items.size(), false);
     }
 
     @Override
@@ -56,31 +51,14 @@ class MainAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     }
 
     @Override
-    public void onBindViewHolder(RecyclerView.ViewHolder holder, int position) {
+    public void onBindGridViewHolder(RecyclerView.ViewHolder holder, int position, int section) {
         if (HeaderViewHolder.class.isInstance(holder)) {
             HeaderView headerView = (HeaderView) ((HeaderViewHolder) holder).itemView;
             headerView.setHeaderText(items.get(position));
-            headerView.setPosition(position);
         } else { // item
             ItemView itemView = (ItemView) ((ItemViewHolder) holder).itemView;
             itemView.setItemNameText(items.get(position));
-            itemView.setPosition(position);
-            itemView.setHeaderIndex(findHeaderId(position));
-        }
-    }
-
-    @Override
-    public int getItemCount() {
-        return items.size();
-    }
-
-    private int findHeaderId(int itemPosition){
-        for (int i = itemPosition - 1; i >= 0; i--) {
-            if (headerPositions.contains(i)) {
-                return i;
-            }
         }
-        return 0;
     }
 
 }
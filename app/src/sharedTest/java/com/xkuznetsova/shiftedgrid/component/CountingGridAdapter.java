@@ -0,0 +1,131 @@
+package com.xkuznetsova.shiftedgrid.component;
+
+import android.content.Context;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+import android.view.ViewGroup;
+
+import java.util.Arrays;
+
+/**
+ * Sections of the same size with views of a fixed height. Counts created and bound
+ * view holders separately, binding doesn't allocate. Shared by the unit and instrumented tests.
+ *
+ * @author kuznetsova
+ */
+
+class CountingGridAdapter extends SectionedGridAdapter<RecyclerView.ViewHolder> {
+
+    static final int ITEM_HEIGHT = 300;
+    static final int HEADER_HEIGHT = 100;
+
+    private int[] headerPositions;
+    private int itemCount;
+
+    private int createCount;
+    private int bindCount;
+
+    CountingGridAdapter(int sectionCount, int sectionItemCount) {
+        headerPositions = new int[sectionCount];
+        for (int section = 0; section < sectionCount; section++) {
+            headerPositions[section] = section * (sectionItemCount + 1);
+        }
+        itemCount = sectionCount * (sectionItemCount + 1);
+        setSections(headerPositions, itemCount, false);
+    }
+
+    /**
+     * Inserts an item at the position, it must not be the position of a header.
+     */
+    void insertItem(int position) {
+        headerPositions = Arrays.copyOf(headerPositions, headerPositions.length);
+        for (int section = 0; section < headerPositions.length; section++) {
+            if (headerPositions[section] >= position) {
+                headerPositions[section]++;
+            }
+        }
+        itemCount++;
+        setSections(headerPositions, itemCount, false);
+        notifyItemInserted(position);
+    }
+
+    int getCreateCount() {
+        return createCount;
+    }
+
+    int getBindCount() {
+        return bindCount;
+    }
+
+    void resetCounts() {
+        createCount = 0;
+        bindCount = 0;
+    }
+
+    @Override
+    public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        createCount++;
+        View view = viewType == TYPE_HEADER
+                ? new HeaderView(parent.getContext()) : new ItemView(parent.getContext());
+        return new RecyclerView.ViewHolder(view) {
+        };
+    }
+
+    @Override
+    public void onBindGridViewHolder(RecyclerView.ViewHolder holder, int position, int section) {
+        bindCount++;
+    }
+
+    private static class ItemView extends View implements IGridItem {
+
+        private int position;
+        private int headerIndex = NO_NEADER;
+
+        ItemView(Context context) {
+            super(context);
+            setMinimumHeight(ITEM_HEIGHT);
+            setLayoutParams(new RecyclerView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ITEM_HEIGHT));
+        }
+
+        @Override
+        public int getHeaderIndex() {
+            return headerIndex;
+        }
+
+        @Override
+        public void setHeaderIndex(int headerIndex) {
+            this.headerIndex = headerIndex;
+        }
+
+        @Override
+        public int getPosition() {
+            return position;
+        }
+
+        @Override
+        public void setPosition(int position) {
+            this.position = position;
+        }
+    }
+
+    private static class HeaderView extends View implements IGridHeader {
+
+        private int position;
+
+        HeaderView(Context context) {
+            super(context);
+            setMinimumHeight(HEADER_HEIGHT);
+        }
+
+        @Override
+        public int getPosition() {
+            return position;
+        }
+
+        @Override
+        public void setPosition(int position) {
+            this.position = position;
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+package com.xkuznetsova.shiftedgrid.component;
+
+import android.app.Activity;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+import android.view.ViewGroup;
+
+import org.robolectric.Robolectric;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Grid of a fixed size attached to an activity. Scrolls, flings and dataset changes are
+ * scripted and run synchronously, so created and bound views, measures and allocated bytes
+ * are counted exactly for every operation.
+ *
+ * @author kuznetsova
+ */
+
+class GridHarness {
+
+    static final int WIDTH = 1080;
+    static final int HEIGHT = 1920;
+
+    /* Views RecyclerView keeps by their positions before they go to the pool */
+    static final int VIEW_CACHE_SIZE = 2;
+
+    private static final int ROW_SHIFT = 60;
+    /* Velocity lost by a scripted fling every frame, in pixels per frame */
+    private static final int FLING_DECELERATION = 15;
+
+    final RecyclerView recyclerView;
+    final ShiftedGridLayoutManager layoutManager;
+    final CountingGridAdapter adapter;
+    private final LayoutStats layoutStats = new LayoutStats();
+
+    private long allocatedBytesStart;
+
+    GridHarness(int columnCount, int sectionCount, int sectionItemCount) {
+        Activity activity = Robolectric.setupActivity(Activity.class);
+        recyclerView = new RecyclerView(activity);
+        // animations add pre-layout passes, only the layout work is counted
+        recyclerView.setItemAnimator(null);
+
+        layoutManager = new ShiftedGridLayoutManager(columnCount, ROW_SHIFT);
+        layoutManager.setLayoutStats(layoutStats);
+        recyclerView.setLayoutManager(layoutManager);
+
+        adapter = new CountingGridAdapter(sectionCount, sectionItemCount);
+        recyclerView.setAdapter(adapter);
+
+        activity.setContentView(recyclerView, new ViewGroup.LayoutParams(WIDTH, HEIGHT));
+        layout();
+    }
+
+    /**
+     * Runs a layout pass like a frame after requestLayout.
+     */
+    void layout() {
+        recyclerView.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        recyclerView.layout(0, 0, WIDTH, HEIGHT);
+    }
+
+    /**
+     * Scrolls by the same distance every frame.
+     */
+    void scrollFrames(int frameCount, int dy) {
+        for (int frame = 0; frame < frameCount; frame++) {
+            recyclerView.scrollBy(0, dy);
+        }
+    }
+
+    /**
+     * Scrolls frame by frame with a linearly decreasing velocity.
+     *
+     * @param velocity - distance of the first frame, negative to fling up
+     */
+    void fling(int velocity) {
+        int step = velocity > 0 ? -FLING_DECELERATION : FLING_DECELERATION;
+        for (int dy = velocity; dy * velocity > 0; dy += step) {
+            recyclerView.scrollBy(0, dy);
+        }
+    }
+
+    int getVisibleViewCount() {
+        return recyclerView.getChildCount();
+    }
+
+    int getFirstVisiblePosition() {
+        return recyclerView.getChildAdapterPosition(recyclerView.getChildAt(0));
+    }
+
+    int getLastVisiblePosition() {
+        return recyclerView.getChildAdapterPosition(recyclerView.getChildAt(recyclerView.getChildCount() - 1));
+    }
+
+    void resetCounts() {
+        adapter.resetCounts();
+        layoutStats.reset();
+        allocatedBytesStart = getThreadAllocatedBytes();
+    }
+
+    int getCreateCount() {
+        return adapter.getCreateCount();
+    }
+
+    int getBindCount() {
+        return adapter.getBindCount();
+    }
+
+    int getMeasureCount() {
+        return layoutStats.getMeasureCount();
+    }
+
+    /**
+     * @return bytes allocated on this thread since the counts were reset, 0 if the JVM
+     * doesn't count them. Robolectric's shadows allocate too, on a device allocations
+     * are checked by the instrumented tests.
+     */
+    long getAllocatedBytes() {
+        return getThreadAllocatedBytes() - allocatedBytesStart;
+    }
+
+    String describeCounts() {
+        return "created=" + getCreateCount() + ", bound=" + getBindCount() + ", measured=" + getMeasureCount()
+                + ", allocated=" + getAllocatedBytes() + "B, visible=" + getVisibleViewCount();
+    }
+
+    private static long getThreadAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+            if (threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled()) {
+                return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return 0;
+    }
+
+}
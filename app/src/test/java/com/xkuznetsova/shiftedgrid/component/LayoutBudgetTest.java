@@ -0,0 +1,158 @@
+package com.xkuznetsova.shiftedgrid.component;
+
+import com.xkuznetsova.shiftedgrid.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Work budgets of {@link ShiftedGridLayoutManager} per scripted operation: a view is
+ * created only when the pool has none, bound only when its position comes into the screen
+ * and measured only when it is bound or laid out again.
+ *
+ * @author kuznetsova
+ */
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class LayoutBudgetTest {
+
+    private static final int COLUMN_COUNT = 3;
+    private static final int SECTION_COUNT = 50;
+    private static final int SECTION_ITEM_COUNT = 30;
+
+    /* First layout measures a header and an item to estimate the heights */
+    private static final int ESTIMATE_MEASURES = 2;
+
+    /* Scroll step that doesn't divide the rows' heights */
+    private static final int FRAME_DELTA = 97;
+    private static final int WARM_UP_FRAMES = 200;
+
+    private GridHarness harness;
+
+    @Before
+    public void setUp() {
+        harness = new GridHarness(COLUMN_COUNT, SECTION_COUNT, SECTION_ITEM_COUNT);
+    }
+
+    @Test
+    public void initialLayoutBindsOnlyVisibleViews() {
+        // counted since the harness was created
+        int visible = harness.getVisibleViewCount();
+        String counts = harness.describeCounts();
+
+        assertTrue(counts, visible > 0);
+        assertTrue(counts, harness.getCreateCount() <= visible);
+        assertTrue(counts, harness.getBindCount() <= visible);
+        assertTrue(counts, harness.getMeasureCount() <= visible + ESTIMATE_MEASURES);
+    }
+
+    @Test
+    public void scrollByRowBindsOnlyEnteringPositions() {
+        harness.resetCounts();
+        int lastBefore = harness.getLastVisiblePosition();
+
+        harness.scrollFrames(1, CountingGridAdapter.ITEM_HEIGHT);
+
+        int entered = harness.getLastVisiblePosition() - lastBefore;
+        String counts = harness.describeCounts() + ", entered=" + entered;
+        assertTrue(counts, entered > 0);
+        assertTrue(counts, harness.getCreateCount() <= entered);
+        assertTrue(counts, harness.getBindCount() <= entered);
+        assertTrue(counts, harness.getMeasureCount() <= entered);
+    }
+
+    @Test
+    public void steadyStateScrollCreatesNoViews() {
+        harness.scrollFrames(WARM_UP_FRAMES, FRAME_DELTA);
+        harness.resetCounts();
+        int lastBefore = harness.getLastVisiblePosition();
+
+        harness.scrollFrames(300, FRAME_DELTA);
+
+        int entered = harness.getLastVisiblePosition() - lastBefore;
+        String counts = harness.describeCounts() + ", entered=" + entered;
+        assertEquals(counts, 0, harness.getCreateCount());
+        assertTrue(counts, harness.getBindCount() <= entered);
+        assertTrue(counts, harness.getMeasureCount() <= harness.getBindCount());
+    }
+
+    @Test
+    public void flingCreatesNoViewsAfterWarmUp() {
+        harness.scrollFrames(WARM_UP_FRAMES, FRAME_DELTA);
+        harness.resetCounts();
+        int lastBefore = harness.getLastVisiblePosition();
+
+        harness.fling(600);
+
+        int entered = harness.getLastVisiblePosition() - lastBefore;
+        String counts = harness.describeCounts() + ", entered=" + entered;
+        assertEquals(counts, 0, harness.getCreateCount());
+        assertTrue(counts, harness.getBindCount() <= entered);
+        assertTrue(counts, harness.getMeasureCount() <= harness.getBindCount());
+    }
+
+    @Test
+    public void flingBackRebindsOnlyEnteringPositions() {
+        harness.scrollFrames(WARM_UP_FRAMES, FRAME_DELTA);
+        harness.resetCounts();
+        int firstBefore = harness.getFirstVisiblePosition();
+
+        harness.fling(-600);
+
+        int entered = firstBefore - harness.getFirstVisiblePosition();
+        String counts = harness.describeCounts() + ", entered=" + entered;
+        assertEquals(counts, 0, harness.getCreateCount());
+        assertTrue(counts, harness.getBindCount() <= entered);
+    }
+
+    @Test
+    public void farJumpBindsOneScreen() {
+        harness.scrollFrames(WARM_UP_FRAMES, FRAME_DELTA);
+        harness.resetCounts();
+
+        harness.scrollFrames(1, 50000);
+
+        String counts = harness.describeCounts();
+        // views left in RecyclerView's view cache are kept for their old positions
+        assertTrue(counts, harness.getCreateCount() <= GridHarness.VIEW_CACHE_SIZE + 1);
+        assertTrue(counts, harness.getBindCount() <= harness.getVisibleViewCount());
+        assertTrue(counts, harness.getMeasureCount() <= harness.getBindCount());
+    }
+
+    @Test
+    public void datasetChangeRebindsVisibleViewsFromPool() {
+        harness.resetCounts();
+        int visible = harness.getVisibleViewCount();
+
+        harness.adapter.notifyDataSetChanged();
+        harness.layout();
+
+        String counts = harness.describeCounts();
+        assertEquals(counts, 0, harness.getCreateCount());
+        assertTrue(counts, harness.getBindCount() <= visible);
+        assertTrue(counts, harness.getMeasureCount() <= visible);
+    }
+
+    @Test
+    public void insertedItemIsTheOnlyBoundView() {
+        harness.resetCounts();
+        int visible = harness.getVisibleViewCount();
+
+        harness.adapter.insertItem(5);
+        harness.layout();
+
+        String counts = harness.describeCounts();
+        assertTrue(counts, harness.getCreateCount() <= 1);
+        assertEquals(counts, 1, harness.getBindCount());
+        // children are laid out again, each of them is measured once
+        assertTrue(counts, harness.getMeasureCount() <= visible + 1);
+    }
+
+}
@@ -0,0 +1,154 @@
+package com.xkuznetsova.shiftedgrid.geometry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-frame cost of the geometry engine on synthetic datasets. Sections are
+ * spread evenly over the dataset, their count is clamped so every section
+ * has at least one item.
+ *
+ * Run with {@code ./gradlew :geometry:jmh}.
+ *
+ * @author kuznetsova
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GeometryIndexBenchmark {
+
+    private static final int COLUMN_COUNT = 3;
+    private static final int HEADER_HEIGHT = 48;
+    private static final int ROW_HEIGHT = 160;
+    private static final int FOOTER_HEIGHT = 64;
+    private static final int VIEWPORT_HEIGHT = 1920;
+
+    /* Number of precomputed random inputs, a power of two */
+    private static final int SAMPLE_COUNT = 1024;
+
+    @Param({"1000", "100000", "10000000"})
+    public int itemCount;
+
+    @Param({"1", "1000", "100000"})
+    public int sectionCount;
+
+    private SectionIndex sections;
+    private GeometryIndex geometry;
+
+    /* Random absolute coordinates, scroll deltas and sections */
+    private long[] sampleY;
+    private int[] sampleDelta;
+    private int[] sampleSection;
+    private int sample;
+
+    @Setup
+    public void setUp() {
+        int count = Math.max(1, Math.min(sectionCount, (itemCount - 1) / 2));
+        int span = (itemCount - 1) / count;
+
+        sections = new SectionIndex();
+        for (int i = 0; i < count; i++) {
+            int header = i * span;
+            int items = i == count - 1 ? itemCount - 1 - header - 1 : span - 1;
+            sections.append(header, items);
+        }
+
+        geometry = new GeometryIndex();
+        buildGeometry();
+
+        Random random = new Random(42);
+        long maxScrollOffset = Math.max(geometry.getTotalHeight() - VIEWPORT_HEIGHT, 1);
+        sampleY = new long[SAMPLE_COUNT];
+        sampleDelta = new int[SAMPLE_COUNT];
+        sampleSection = new int[SAMPLE_COUNT];
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            sampleY[i] = (long) (random.nextDouble() * maxScrollOffset);
+            sampleDelta[i] = random.nextInt(2 * VIEWPORT_HEIGHT) - VIEWPORT_HEIGHT;
+            sampleSection[i] = random.nextInt(count);
+        }
+    }
+
+    /*
+    * First and last rows that intersect the viewport.
+    */
+    @Benchmark
+    public void visibleRange(Blackhole blackhole) {
+        long y = sampleY[nextSample()];
+        blackhole.consume(geometry.getRowAtY(y));
+        blackhole.consume(geometry.getRowAtY(y + VIEWPORT_HEIGHT - 1));
+    }
+
+    /*
+    * Scroll by a delta: clamp it to the grid, find the new first visible
+    * position and its offset.
+    */
+    @Benchmark
+    public void scrollDelta(Blackhole blackhole) {
+        int index = nextSample();
+        long scrollOffset = geometry.clampScrollOffset(sampleY[index] + sampleDelta[index],
+                VIEWPORT_HEIGHT);
+        int row = geometry.getRowAtY(scrollOffset);
+        blackhole.consume(geometry.getRowFirstPosition(row));
+        blackhole.consume(scrollOffset - geometry.getRowTop(row));
+    }
+
+    /*
+    * Measured row height of a section differs from the estimated one.
+    */
+    @Benchmark
+    public void updateRowHeight(Blackhole blackhole) {
+        int index = nextSample();
+        geometry.setSectionRowHeight(sampleSection[index], ROW_HEIGHT + (index & 1));
+        blackhole.consume(geometry.getTotalHeight());
+    }
+
+    /*
+    * An item is inserted into a section and removed again, the geometry
+    * is rebuilt after every change like after a layout pass.
+    */
+    @Benchmark
+    public void insertRemoveItem(Blackhole blackhole) {
+        int position = sections.getHeaderPosition(sampleSection[nextSample()]) + 1;
+
+        sections.onItemsAdded(position, 1);
+        itemCount++;
+        buildGeometry();
+        blackhole.consume(geometry.getTotalHeight());
+
+        sections.onItemsRemoved(position, 1);
+        itemCount--;
+        buildGeometry();
+        blackhole.consume(geometry.getTotalHeight());
+    }
+
+    /*
+    * Geometry after notifyDataSetChanged().
+    */
+    @Benchmark
+    public void rebuild(Blackhole blackhole) {
+        buildGeometry();
+        blackhole.consume(geometry.getRowCount());
+    }
+
+    private void buildGeometry() {
+        geometry.build(sections, itemCount, true, COLUMN_COUNT,
+                HEADER_HEIGHT, ROW_HEIGHT, FOOTER_HEIGHT);
+    }
+
+    private int nextSample() {
+        sample = (sample + 1) & (SAMPLE_COUNT - 1);
+        return sample;
+    }
+
+}
@@ -0,0 +1,499 @@
+package com.xkuznetsova.shiftedgrid.geometry;
+
+import java.util.Arrays;
+
+/**
+ * Rows and pixel offsets of the grid, independent from Android views.
+ * For every section it stores the first row and the height, section heights
+ * are summed up in a Fenwick tree. Mapping between positions, rows and coordinates takes
+ * a binary search over sections, a refined section height is applied
+ * without recounting the sections below it.
+ *
+ * Items above the first header (or all items when there are no headers)
+ * form a leading block without a header. The footer is the last row.
+ *
+ * Coordinates are 64-bit, the height of a large dataset doesn't fit into int pixels.
+ * Heights of single rows are ints.
+ *
+ * @author kuznetsova
+ */
+
+public class GeometryIndex {
+
+    /* Row types */
+    public static final int ROW_ITEMS = 0;
+    public static final int ROW_HEADER = 1;
+    public static final int ROW_FOOTER = 2;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /* Block 0 is the leading block without header, block i + 1 is section i */
+    private int[] blockStart = new int[INITIAL_CAPACITY];
+    private int[] blockItemCount = new int[INITIAL_CAPACITY];
+    private int[] blockFirstRow = new int[INITIAL_CAPACITY];
+    private int[] blockHeaderHeight = new int[INITIAL_CAPACITY];
+    private int[] blockRowHeight = new int[INITIAL_CAPACITY];
+    private int[] blockColumnCount = new int[INITIAL_CAPACITY];
+    /* Fenwick tree of block heights, 1-based */
+    private long[] blockHeightTree = new long[INITIAL_CAPACITY + 1];
+    private int blockCount;
+
+    private int columnCount = 1;
+    /* The largest column count of the grid and its sections */
+    private int maxColumnCount = 1;
+    private int footerHeight;
+
+    /* Column counts set for sections by their index, 0 - the grid's column count */
+    private int[] sectionColumnCounts = new int[0];
+
+    private int itemCount;
+    private boolean footerExists;
+
+    private int rowCount;
+    private long blocksHeight;
+
+    /**
+     * Recounts rows and offsets of all sections. Heights that weren't measured
+     * are replaced with the estimated ones.
+     */
+    public void build(SectionIndex sections, int itemCount, boolean footerExists, int columnCount,
+               int estimatedHeaderHeight, int estimatedRowHeight, int footerHeight) {
+        this.itemCount = itemCount;
+        this.footerExists = footerExists;
+        this.columnCount = Math.max(columnCount, 1);
+        this.footerHeight = footerHeight;
+
+        blockCount = sections.size() + 1;
+        ensureCapacity(blockCount);
+
+        int contentEnd = footerExists ? itemCount - 1 : itemCount;
+
+        blockStart[0] = 0;
+        blockItemCount[0] = sections.size() == 0 ? contentEnd : sections.getHeaderPosition(0);
+        blockHeaderHeight[0] = 0;
+        blockRowHeight[0] = estimate(sections.getRowHeight(SectionIndex.NO_SECTION), estimatedRowHeight);
+        blockColumnCount[0] = this.columnCount;
+        for (int section = 0; section < sections.size(); section++) {
+            blockStart[section + 1] = sections.getHeaderPosition(section);
+            blockItemCount[section + 1] = sections.getItemCount(section);
+            blockHeaderHeight[section + 1] = estimate(sections.getHeaderHeight(section), estimatedHeaderHeight);
+            blockRowHeight[section + 1] = estimate(sections.getRowHeight(section), estimatedRowHeight);
+            blockColumnCount[section + 1] = resolveColumnCount(section);
+        }
+
+        maxColumnCount = countMaxColumnCount();
+
+        int row = 0;
+        blocksHeight = 0;
+        Arrays.fill(blockHeightTree, 0, blockCount + 1, 0);
+        for (int block = 0; block < blockCount; block++) {
+            blockFirstRow[block] = row;
+            row += countItemRows(block) + (block > 0 ? 1 : 0);
+
+            // linear Fenwick tree construction
+            int index = block + 1;
+            blockHeightTree[index] += countBlockHeight(block);
+            int parent = index + (index & -index);
+            if (parent <= blockCount) {
+                blockHeightTree[parent] += blockHeightTree[index];
+            }
+            blocksHeight += countBlockHeight(block);
+        }
+
+        if (footerExists) {
+            row++;
+        }
+
+        rowCount = row;
+    }
+
+    /**
+     * Applies the measured height of a section's header.
+     */
+    public void setSectionHeaderHeight(int section, int headerHeight) {
+        int block = section + 1;
+        updateBlockHeight(block, headerHeight, blockRowHeight[block]);
+    }
+
+    /**
+     * Applies the measured height of a section's item rows.
+     *
+     * @param section - section index, {@link SectionIndex#NO_SECTION} for items above the first header
+     */
+    public void setSectionRowHeight(int section, int rowHeight) {
+        int block = section + 1;
+        updateBlockHeight(block, blockHeaderHeight[block], rowHeight);
+    }
+
+    public void setFooterHeight(int footerHeight) {
+        this.footerHeight = footerHeight;
+    }
+
+    /**
+     * Sets the number of columns of a section's items. The column count is kept
+     * by the section's index across builds. Only the section's rows and heights are
+     * recounted, rows of the sections below it are shifted.
+     *
+     * @param section - section index
+     * @param columnCount - number of columns, 0 for the grid's column count
+     */
+    public void setSectionColumnCount(int section, int columnCount) {
+        if (section >= sectionColumnCounts.length) {
+            if (columnCount == 0) {
+                return;
+            }
+            sectionColumnCounts = Arrays.copyOf(sectionColumnCounts,
+                    Math.max(section + 1, sectionColumnCounts.length * 2));
+        }
+        sectionColumnCounts[section] = Math.max(columnCount, 0);
+
+        int block = section + 1;
+        if (block >= blockCount) { // not built yet
+            return;
+        }
+
+        int oldRows = countItemRows(block);
+        long oldHeight = countBlockHeight(block);
+        blockColumnCount[block] = resolveColumnCount(section);
+        maxColumnCount = countMaxColumnCount();
+
+        int rowDelta = countItemRows(block) - oldRows;
+        if (rowDelta != 0) {
+            for (int next = block + 1; next < blockCount; next++) {
+                blockFirstRow[next] += rowDelta;
+            }
+            rowCount += rowDelta;
+        }
+        applyBlockHeightDelta(block, countBlockHeight(block) - oldHeight);
+    }
+
+    /**
+     * @return column count set for the section, 0 if it uses the grid's column count
+     */
+    public int getSectionColumnCount(int section) {
+        return section < sectionColumnCounts.length ? sectionColumnCounts[section] : 0;
+    }
+
+    /**
+     * Takes the column counts set for sections of another index, applied on the next build.
+     */
+    public void copySectionColumnCounts(GeometryIndex other) {
+        sectionColumnCounts = Arrays.copyOf(other.sectionColumnCounts, other.sectionColumnCounts.length);
+    }
+
+    /**
+     * Makes all sections use the grid's column count, applied on the next build.
+     */
+    public void clearSectionColumnCounts() {
+        Arrays.fill(sectionColumnCounts, 0);
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public long getTotalHeight() {
+        return blocksHeight + (footerExists ? footerHeight : 0);
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    /**
+     * @return the largest number of columns among the grid and its sections
+     */
+    public int getMaxColumnCount() {
+        return maxColumnCount;
+    }
+
+    /**
+     * @return number of columns in the row's section
+     */
+    public int getRowColumnCount(int row) {
+        if (isFooterRow(row)) {
+            return 1;
+        }
+        return blockColumnCount[floorIndex(blockFirstRow, blockCount, row)];
+    }
+
+    public int getRowForPosition(int position) {
+        if (isFooterPosition(position)) {
+            return rowCount - 1;
+        }
+
+        int block = floorIndex(blockStart, blockCount, position);
+        int positionInBlock = position - blockStart[block];
+        if (block == 0) {
+            return blockFirstRow[block] + positionInBlock / blockColumnCount[block];
+        }
+        if (positionInBlock == 0) { // header
+            return blockFirstRow[block];
+        }
+        return blockFirstRow[block] + 1 + (positionInBlock - 1) / blockColumnCount[block];
+    }
+
+    public int getRowFirstPosition(int row) {
+        if (isFooterRow(row)) {
+            return itemCount - 1;
+        }
+
+        int block = floorIndex(blockFirstRow, blockCount, row);
+        int rowInBlock = row - blockFirstRow[block];
+        if (block == 0) {
+            return rowInBlock * blockColumnCount[block];
+        }
+        if (rowInBlock == 0) { // header
+            return blockStart[block];
+        }
+        return blockStart[block] + 1 + (rowInBlock - 1) * blockColumnCount[block];
+    }
+
+    /**
+     * @return number of elements placed in the row
+     */
+    public int getRowSize(int row) {
+        if (getRowType(row) != ROW_ITEMS) {
+            return 1;
+        }
+
+        int block = floorIndex(blockFirstRow, blockCount, row);
+        int itemsBefore = getRowInSection(row) * blockColumnCount[block];
+        return Math.min(blockColumnCount[block], blockItemCount[block] - itemsBefore);
+    }
+
+    public int getRowType(int row) {
+        if (isFooterRow(row)) {
+            return ROW_FOOTER;
+        }
+
+        int block = floorIndex(blockFirstRow, blockCount, row);
+        if (block > 0 && row == blockFirstRow[block]) {
+            return ROW_HEADER;
+        }
+        return ROW_ITEMS;
+    }
+
+    /**
+     * @return section index of the row, {@link SectionIndex#NO_SECTION} for rows
+     * above the first header and the footer
+     */
+    public int getSectionForRow(int row) {
+        if (isFooterRow(row)) {
+            return SectionIndex.NO_SECTION;
+        }
+        return floorIndex(blockFirstRow, blockCount, row) - 1;
+    }
+
+    /**
+     * @return index of the items' row among the rows of its section
+     */
+    public int getRowInSection(int row) {
+        int block = floorIndex(blockFirstRow, blockCount, row);
+        int rowInBlock = row - blockFirstRow[block];
+        return block == 0 ? rowInBlock : rowInBlock - 1;
+    }
+
+    public long getRowTop(int row) {
+        if (isFooterRow(row)) {
+            return blocksHeight;
+        }
+
+        int block = floorIndex(blockFirstRow, blockCount, row);
+        int rowInBlock = row - blockFirstRow[block];
+        long blockTop = getBlockTop(block);
+        if (block == 0) {
+            return blockTop + (long) rowInBlock * blockRowHeight[block];
+        }
+        if (rowInBlock == 0) {
+            return blockTop;
+        }
+        return blockTop + blockHeaderHeight[block] + (long) (rowInBlock - 1) * blockRowHeight[block];
+    }
+
+    public int getRowHeight(int row) {
+        if (isFooterRow(row)) {
+            return footerHeight;
+        }
+
+        int block = floorIndex(blockFirstRow, blockCount, row);
+        if (block > 0 && row == blockFirstRow[block]) {
+            return blockHeaderHeight[block];
+        }
+        return blockRowHeight[block];
+    }
+
+    /**
+     * @return row that contains the absolute coordinate, coordinate is clamped to the grid
+     */
+    public int getRowAtY(long y) {
+        if (rowCount == 0) {
+            return 0;
+        }
+        if (y >= blocksHeight) { // footer or below the grid
+            return rowCount - 1;
+        }
+        y = Math.max(y, 0);
+
+        int block = findBlockAt(y);
+        long offsetInBlock = y - getBlockTop(block);
+        int itemRowsInBlock = countItemRows(block);
+        if (block > 0) {
+            if (offsetInBlock < blockHeaderHeight[block] || itemRowsInBlock == 0) {
+                return blockFirstRow[block];
+            }
+            offsetInBlock -= blockHeaderHeight[block];
+        }
+
+        int rowHeight = blockRowHeight[block];
+        int rowInItems = rowHeight == 0 ? 0 : (int) (offsetInBlock / rowHeight);
+        rowInItems = Math.min(rowInItems, itemRowsInBlock - 1);
+        return blockFirstRow[block] + (block > 0 ? 1 : 0) + rowInItems;
+    }
+
+    /**
+     * @return first position of the row that contains the position,
+     * the position is clamped to the dataset
+     */
+    public int getRowStartPosition(int position) {
+        position = Math.max(0, Math.min(position, itemCount - 1));
+        return getRowFirstPosition(getRowForPosition(position));
+    }
+
+    /**
+     * @param scrollOffset - absolute coordinate of the viewport's top edge
+     * @param viewportHeight - height of the viewport
+     * @return offset that keeps the viewport inside the grid
+     */
+    public long clampScrollOffset(long scrollOffset, int viewportHeight) {
+        long maxScrollOffset = Math.max(getTotalHeight() - viewportHeight, 0);
+        return Math.max(0, Math.min(scrollOffset, maxScrollOffset));
+    }
+
+    /**
+     * @return absolute top coordinate of the element's row
+     */
+    public long getPositionTop(int position) {
+        return getRowTop(getRowForPosition(position));
+    }
+
+    /**
+     * @return first position of the row that contains the absolute coordinate
+     */
+    public int getPositionAtY(long y) {
+        return getRowFirstPosition(getRowAtY(y));
+    }
+
+    private void updateBlockHeight(int block, int headerHeight, int rowHeight) {
+        long oldHeight = countBlockHeight(block);
+        blockHeaderHeight[block] = headerHeight;
+        blockRowHeight[block] = rowHeight;
+        applyBlockHeightDelta(block, countBlockHeight(block) - oldHeight);
+    }
+
+    private void applyBlockHeightDelta(int block, long delta) {
+        if (delta == 0) {
+            return;
+        }
+        blocksHeight += delta;
+        for (int index = block + 1; index <= blockCount; index += index & -index) {
+            blockHeightTree[index] += delta;
+        }
+    }
+
+    private long countBlockHeight(int block) {
+        return blockHeaderHeight[block] + (long) countItemRows(block) * blockRowHeight[block];
+    }
+
+    /*
+    * Sum of heights of the blocks above the block
+    */
+    private long getBlockTop(int block) {
+        long top = 0;
+        for (int index = block; index > 0; index -= index & -index) {
+            top += blockHeightTree[index];
+        }
+        return top;
+    }
+
+    /*
+    * The last block whose top is not below the coordinate. Descends the Fenwick tree,
+    * empty blocks are skipped because their height doesn't exceed the rest of the coordinate.
+    */
+    private int findBlockAt(long y) {
+        int index = 0;
+        long rest = y;
+        for (int step = Integer.highestOneBit(blockCount); step > 0; step >>= 1) {
+            int next = index + step;
+            if (next <= blockCount && blockHeightTree[next] <= rest) {
+                index = next;
+                rest -= blockHeightTree[next];
+            }
+        }
+        // index blocks fit entirely above the coordinate
+        return Math.min(index, blockCount - 1);
+    }
+
+    private boolean isFooterPosition(int position) {
+        return footerExists && position == itemCount - 1;
+    }
+
+    private boolean isFooterRow(int row) {
+        return footerExists && row == rowCount - 1;
+    }
+
+    private int countItemRows(int block) {
+        return (blockItemCount[block] + blockColumnCount[block] - 1) / blockColumnCount[block];
+    }
+
+    private int countMaxColumnCount() {
+        int max = columnCount;
+        for (int block = 1; block < blockCount; block++) {
+            max = Math.max(max, blockColumnCount[block]);
+        }
+        return max;
+    }
+
+    private int resolveColumnCount(int section) {
+        int sectionColumnCount = getSectionColumnCount(section);
+        return sectionColumnCount > 0 ? sectionColumnCount : columnCount;
+    }
+
+    private static int estimate(int measuredHeight, int estimatedHeight) {
+        return measuredHeight == SectionIndex.NO_SIZE ? estimatedHeight : measuredHeight;
+    }
+
+    /*
+    * Index of the last value that is not greater than the key. Values are sorted, equal values
+    * belong to empty blocks - the last one is the non-empty block.
+    */
+    private static int floorIndex(int[] values, int size, int key) {
+        int low = 0;
+        int high = size - 1;
+        int result = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= key) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > blockStart.length) {
+            int newCapacity = Math.max(capacity, blockStart.length * 2);
+            blockStart = Arrays.copyOf(blockStart, newCapacity);
+            blockItemCount = Arrays.copyOf(blockItemCount, newCapacity);
+            blockFirstRow = Arrays.copyOf(blockFirstRow, newCapacity);
+            blockHeaderHeight = Arrays.copyOf(blockHeaderHeight, newCapacity);
+            blockRowHeight = Arrays.copyOf(blockRowHeight, newCapacity);
+            blockColumnCount = Arrays.copyOf(blockColumnCount, newCapacity);
+            blockHeightTree = new long[newCapacity + 1];
+        }
+    }
+
+}
@@ -0,0 +1,195 @@
+package com.xkuznetsova.shiftedgrid.geometry;
+
+import java.util.Arrays;
+
+/**
+ * Header positions mapped to number of items under them. Headers are kept
+ * sorted in primitive arrays, so a position can be resolved to its section
+ * with binary search and adapter changes can be applied in place.
+ *
+ * @author kuznetsova
+ */
+
+public class SectionIndex {
+
+    public static final int NO_SECTION = -1;
+    /* Height that wasn't measured yet */
+    public static final int NO_SIZE = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] headerPositions = new int[INITIAL_CAPACITY];
+    private int[] itemCounts = new int[INITIAL_CAPACITY];
+    /* Measured heights of the sections' headers and item rows */
+    private int[] headerHeights = new int[INITIAL_CAPACITY];
+    private int[] rowHeights = new int[INITIAL_CAPACITY];
+    private int size;
+
+    /* Measured height of item rows above the first header */
+    private int leadingRowHeight = NO_SIZE;
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+        leadingRowHeight = NO_SIZE;
+    }
+
+    /**
+     * Adds a section after all existing ones.
+     */
+    public void append(int headerPosition, int itemCount) {
+        ensureCapacity(size + 1);
+        headerPositions[size] = headerPosition;
+        itemCounts[size] = itemCount;
+        headerHeights[size] = NO_SIZE;
+        rowHeights[size] = NO_SIZE;
+        size++;
+    }
+
+    public int getHeaderPosition(int section) {
+        return headerPositions[section];
+    }
+
+    public int getItemCount(int section) {
+        return itemCounts[section];
+    }
+
+    public int getHeaderHeight(int section) {
+        return headerHeights[section];
+    }
+
+    public void setHeaderHeight(int section, int height) {
+        headerHeights[section] = height;
+    }
+
+    /**
+     * @param section - section index, {@link #NO_SECTION} for items above the first header
+     */
+    public int getRowHeight(int section) {
+        return section == NO_SECTION ? leadingRowHeight : rowHeights[section];
+    }
+
+    public void setRowHeight(int section, int height) {
+        if (section == NO_SECTION) {
+            leadingRowHeight = height;
+        } else {
+            rowHeights[section] = height;
+        }
+    }
+
+    /**
+     * Forgets measured heights of the sections that contain the changed positions.
+     */
+    public void invalidateHeights(int positionStart, int itemCount) {
+        int first = findSection(positionStart);
+        int last = findSection(positionStart + itemCount - 1);
+        if (first == NO_SECTION) {
+            leadingRowHeight = NO_SIZE;
+            first = 0;
+        }
+        for (int section = first; section <= last; section++) {
+            headerHeights[section] = NO_SIZE;
+            rowHeights[section] = NO_SIZE;
+        }
+    }
+
+    /**
+     * @return section index if there is a header at the position, negative value otherwise
+     */
+    public int indexOfHeader(int position) {
+        return Arrays.binarySearch(headerPositions, 0, size, position);
+    }
+
+    public boolean isHeader(int position) {
+        return indexOfHeader(position) >= 0;
+    }
+
+    /**
+     * @return index of the section the position belongs to,
+     * {@link #NO_SECTION} if the position is above the first header
+     */
+    public int findSection(int position) {
+        int index = Arrays.binarySearch(headerPositions, 0, size, position);
+        if (index >= 0) {
+            return index;
+        }
+        return -index - 2; // section of the closest header above
+    }
+
+    /**
+     * Items were inserted at positionStart. They are added to the section above
+     * the insertion point, headers below it are shifted.
+     */
+    public void onItemsAdded(int positionStart, int itemCount) {
+        int section = findSection(positionStart - 1);
+        if (section != NO_SECTION) {
+            itemCounts[section] += itemCount;
+        }
+        setRowHeight(section, NO_SIZE);
+        shiftHeaders(section + 1, itemCount);
+    }
+
+    /**
+     * Items were removed from positionStart. Sections whose headers were removed
+     * are dropped, their remaining items join the section above.
+     */
+    public void onItemsRemoved(int positionStart, int itemCount) {
+        int positionEnd = positionStart + itemCount;
+        int first = findSection(positionStart);
+        setRowHeight(first, NO_SIZE);
+        first = Math.max(first, 0);
+
+        int write = first;
+        for (int read = first; read < size; read++) {
+            int header = headerPositions[read];
+            int itemsStart = header + 1;
+            int itemsEnd = itemsStart + itemCounts[read];
+            int removedItems = Math.max(0,
+                    Math.min(itemsEnd, positionEnd) - Math.max(itemsStart, positionStart));
+            int remainingItems = itemCounts[read] - removedItems;
+
+            if (header >= positionStart && header < positionEnd) { // header is removed
+                if (write > 0) {
+                    itemCounts[write - 1] += remainingItems;
+                }
+                setRowHeight(write - 1, NO_SIZE);
+                continue;
+            }
+
+            headerPositions[write] = header >= positionEnd ? header - itemCount : header;
+            itemCounts[write] = remainingItems;
+            headerHeights[write] = headerHeights[read];
+            rowHeights[write] = removedItems > 0 ? NO_SIZE : rowHeights[read];
+            write++;
+        }
+        size = write;
+    }
+
+    /**
+     * Moves a single item, it must not be a header.
+     */
+    public void onItemMoved(int from, int to) {
+        onItemsRemoved(from, 1);
+        onItemsAdded(to, 1);
+    }
+
+    private void shiftHeaders(int fromSection, int delta) {
+        for (int i = fromSection; i < size; i++) {
+            headerPositions[i] += delta;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > headerPositions.length) {
+            int newCapacity = Math.max(capacity, headerPositions.length * 2);
+            headerPositions = Arrays.copyOf(headerPositions, newCapacity);
+            itemCounts = Arrays.copyOf(itemCounts, newCapacity);
+            headerHeights = Arrays.copyOf(headerHeights, newCapacity);
+            rowHeights = Arrays.copyOf(rowHeights, newCapacity);
+        }
+    }
+
+}
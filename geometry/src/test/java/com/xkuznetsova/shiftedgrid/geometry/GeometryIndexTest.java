@@ -0,0 +1,279 @@
+package com.xkuznetsova.shiftedgrid.geometry;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link GeometryIndex} against a model that lays out every row one by one.
+ *
+ * @author kuznetsova
+ */
+
+public class GeometryIndexTest {
+
+    private static final int HEADER_HEIGHT = 48;
+    private static final int ROW_HEIGHT = 160;
+    private static final int FOOTER_HEIGHT = 64;
+
+    @Test
+    public void buildMatchesModel() {
+        Random random = new Random(42);
+        for (int iteration = 0; iteration < 500; iteration++) {
+            Dataset dataset = Dataset.random(random);
+            GeometryIndex geometry = dataset.build();
+            assertMatchesModel(dataset, geometry);
+        }
+    }
+
+    @Test
+    public void emptyLeadingBlockAndEmptySections() {
+        // header at 0 leaves the leading block empty, sections 1 and 2 have no items
+        Dataset dataset = new Dataset(new int[]{0, 3, 4, 5}, new int[]{2, 0, 0, 3}, 10, true, 2);
+        GeometryIndex geometry = dataset.build();
+
+        assertEquals(8, geometry.getRowCount());
+        assertEquals(GeometryIndex.ROW_HEADER, geometry.getRowType(0));
+        assertEquals(GeometryIndex.ROW_HEADER, geometry.getRowType(2));
+        assertEquals(GeometryIndex.ROW_HEADER, geometry.getRowType(3));
+        assertEquals(GeometryIndex.ROW_HEADER, geometry.getRowType(4));
+        assertEquals(4, geometry.getRowFirstPosition(3));
+        assertEquals(2, geometry.getSectionForRow(3));
+        assertEquals(4, geometry.getRowForPosition(5));
+        assertEquals(GeometryIndex.ROW_FOOTER, geometry.getRowType(7));
+        assertMatchesModel(dataset, geometry);
+    }
+
+    @Test
+    public void measuredHeightsShiftRowsBelow() {
+        Random random = new Random(7);
+        for (int iteration = 0; iteration < 200; iteration++) {
+            Dataset dataset = Dataset.random(random);
+            GeometryIndex geometry = dataset.build();
+
+            for (int change = 0; change < 5; change++) {
+                int section = random.nextInt(dataset.headers.length + 1) - 1; // leading block too
+                int height = 1 + random.nextInt(300);
+                if (section >= 0 && random.nextBoolean()) {
+                    dataset.headerHeights[section] = height;
+                    geometry.setSectionHeaderHeight(section, height);
+                } else {
+                    dataset.setRowHeight(section, height);
+                    geometry.setSectionRowHeight(section, height);
+                }
+            }
+            assertMatchesModel(dataset, geometry);
+        }
+    }
+
+    @Test
+    public void sectionColumnCountShiftsRowsBelow() {
+        Random random = new Random(11);
+        for (int iteration = 0; iteration < 200; iteration++) {
+            Dataset dataset = Dataset.random(random);
+            if (dataset.headers.length == 0) {
+                continue;
+            }
+            GeometryIndex geometry = dataset.build();
+
+            for (int change = 0; change < 5; change++) {
+                int section = random.nextInt(dataset.headers.length);
+                int columnCount = random.nextInt(6); // 0 - the grid's column count
+                dataset.sectionColumnCounts[section] = columnCount;
+                geometry.setSectionColumnCount(section, columnCount);
+            }
+            assertMatchesModel(dataset, geometry);
+
+            // the counts are kept across builds
+            geometry.build(dataset.sections(), dataset.itemCount, dataset.footer, dataset.columnCount,
+                    HEADER_HEIGHT, ROW_HEIGHT, FOOTER_HEIGHT);
+            assertMatchesModel(dataset, geometry);
+        }
+    }
+
+    @Test
+    public void topsBeyondIntRange() {
+        // 10M rows of 300px in a single column
+        SectionIndex sections = new SectionIndex();
+        GeometryIndex geometry = new GeometryIndex();
+        geometry.build(sections, 10000000, false, 1, HEADER_HEIGHT, 300, FOOTER_HEIGHT);
+
+        long expectedHeight = 10000000L * 300;
+        assertEquals(expectedHeight, geometry.getTotalHeight());
+        assertEquals(9999999L * 300, geometry.getRowTop(9999999));
+        assertEquals(9999999, geometry.getRowAtY(expectedHeight - 1));
+        assertEquals(8000000, geometry.getRowAtY(8000000L * 300 + 299));
+        assertEquals(expectedHeight - 1000, geometry.clampScrollOffset(Long.MAX_VALUE, 1000));
+    }
+
+    @Test
+    public void coordinatesOutsideGridAreClamped() {
+        Dataset dataset = new Dataset(new int[]{2}, new int[]{3}, 7, true, 2);
+        GeometryIndex geometry = dataset.build();
+
+        assertEquals(0, geometry.getRowAtY(-100));
+        assertEquals(geometry.getRowCount() - 1, geometry.getRowAtY(geometry.getTotalHeight() + 100));
+        assertEquals(0, geometry.clampScrollOffset(-5, 100));
+        assertEquals(0, geometry.clampScrollOffset(50, (int) geometry.getTotalHeight() + 1));
+    }
+
+    private static void assertMatchesModel(Dataset dataset, GeometryIndex geometry) {
+        List<Row> rows = dataset.layOut();
+        assertEquals(dataset.toString(), rows.size(), geometry.getRowCount());
+
+        long top = 0;
+        for (int row = 0; row < rows.size(); row++) {
+            Row expected = rows.get(row);
+            String message = dataset + " row " + row;
+            assertEquals(message, expected.type, geometry.getRowType(row));
+            assertEquals(message, expected.firstPosition, geometry.getRowFirstPosition(row));
+            assertEquals(message, expected.size, geometry.getRowSize(row));
+            assertEquals(message, expected.section, geometry.getSectionForRow(row));
+            assertEquals(message, expected.height, geometry.getRowHeight(row));
+            assertEquals(message, top, geometry.getRowTop(row));
+            for (int i = 0; i < expected.size; i++) {
+                assertEquals(message, row, geometry.getRowForPosition(expected.firstPosition + i));
+            }
+            if (expected.height > 0) {
+                assertEquals(message, row, geometry.getRowAtY(top));
+                assertEquals(message, row, geometry.getRowAtY(top + expected.height - 1));
+            }
+            top += expected.height;
+        }
+        assertEquals(dataset.toString(), top, geometry.getTotalHeight());
+    }
+
+    private static class Row {
+        int type;
+        int firstPosition;
+        int size;
+        int section;
+        int height;
+    }
+
+    /*
+    * Sections, measured heights and column counts, laid out by the model row by row
+    */
+    private static class Dataset {
+
+        final int[] headers;
+        final int[] itemCounts;
+        final int itemCount;
+        final boolean footer;
+        final int columnCount;
+
+        final int[] headerHeights;
+        final int[] rowHeights;
+        int leadingRowHeight = ROW_HEIGHT;
+        final int[] sectionColumnCounts;
+
+        Dataset(int[] headers, int[] itemCounts, int itemCount, boolean footer, int columnCount) {
+            this.headers = headers;
+            this.itemCounts = itemCounts;
+            this.itemCount = itemCount;
+            this.footer = footer;
+            this.columnCount = columnCount;
+            headerHeights = new int[headers.length];
+            rowHeights = new int[headers.length];
+            sectionColumnCounts = new int[headers.length];
+            for (int section = 0; section < headers.length; section++) {
+                headerHeights[section] = HEADER_HEIGHT;
+                rowHeights[section] = ROW_HEIGHT;
+            }
+        }
+
+        static Dataset random(Random random) {
+            int position = random.nextInt(4); // leading items
+            int sectionCount = random.nextInt(6);
+            int[] headers = new int[sectionCount];
+            int[] itemCounts = new int[sectionCount];
+            for (int section = 0; section < sectionCount; section++) {
+                headers[section] = position;
+                itemCounts[section] = random.nextInt(8);
+                position += itemCounts[section] + 1;
+            }
+            boolean footer = random.nextBoolean();
+            return new Dataset(headers, itemCounts, footer ? position + 1 : position, footer,
+                    1 + random.nextInt(4));
+        }
+
+        void setRowHeight(int section, int height) {
+            if (section == SectionIndex.NO_SECTION) {
+                leadingRowHeight = height;
+            } else {
+                rowHeights[section] = height;
+            }
+        }
+
+        GeometryIndex build() {
+            GeometryIndex geometry = new GeometryIndex();
+            build(geometry);
+            return geometry;
+        }
+
+        SectionIndex sections() {
+            SectionIndex sections = new SectionIndex();
+            for (int section = 0; section < headers.length; section++) {
+                sections.append(headers[section], itemCounts[section]);
+            }
+            return sections;
+        }
+
+        void build(GeometryIndex geometry) {
+            geometry.build(sections(), itemCount, footer, columnCount, HEADER_HEIGHT, ROW_HEIGHT, FOOTER_HEIGHT);
+            for (int section = 0; section < headers.length; section++) {
+                geometry.setSectionHeaderHeight(section, headerHeights[section]);
+                geometry.setSectionRowHeight(section, rowHeights[section]);
+                geometry.setSectionColumnCount(section, sectionColumnCounts[section]);
+            }
+            geometry.setSectionRowHeight(SectionIndex.NO_SECTION, leadingRowHeight);
+        }
+
+        List<Row> layOut() {
+            List<Row> rows = new ArrayList<>();
+            int leadingItems = headers.length == 0 ? (footer ? itemCount - 1 : itemCount) : headers[0];
+            addItemRows(rows, SectionIndex.NO_SECTION, 0, leadingItems, columnCount, leadingRowHeight);
+            for (int section = 0; section < headers.length; section++) {
+                rows.add(row(GeometryIndex.ROW_HEADER, headers[section], 1, section, headerHeights[section]));
+                int columns = sectionColumnCounts[section] > 0 ? sectionColumnCounts[section] : columnCount;
+                addItemRows(rows, section, headers[section] + 1, itemCounts[section], columns, rowHeights[section]);
+            }
+            if (footer) {
+                rows.add(row(GeometryIndex.ROW_FOOTER, itemCount - 1, 1, SectionIndex.NO_SECTION, FOOTER_HEIGHT));
+            }
+            return rows;
+        }
+
+        private static void addItemRows(List<Row> rows, int section, int firstPosition, int count,
+                                        int columns, int height) {
+            for (int i = 0; i < count; i += columns) {
+                rows.add(row(GeometryIndex.ROW_ITEMS, firstPosition + i, Math.min(columns, count - i),
+                        section, height));
+            }
+        }
+
+        private static Row row(int type, int firstPosition, int size, int section, int height) {
+            Row row = new Row();
+            row.type = type;
+            row.firstPosition = firstPosition;
+            row.size = size;
+            row.section = section;
+            row.height = height;
+            return row;
+        }
+
+        @Override
+        public String toString() {
+            return "Dataset{headers=" + Arrays.toString(headers)
+                    + ", itemCounts=" + Arrays.toString(itemCounts)
+                    + ", itemCount=" + itemCount + ", footer=" + footer + ", columns=" + columnCount
+                    + ", sectionColumns=" + Arrays.toString(sectionColumnCounts) + "}";
+        }
+    }
+
+}
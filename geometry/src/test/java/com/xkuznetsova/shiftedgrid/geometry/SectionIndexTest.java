@@ -0,0 +1,197 @@
+package com.xkuznetsova.shiftedgrid.geometry;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks in-place patching of {@link SectionIndex} against a model that keeps
+ * the type of every position.
+ *
+ * @author kuznetsova
+ */
+
+public class SectionIndexTest {
+
+    @Test
+    public void findSection() {
+        SectionIndex sections = new SectionIndex();
+        sections.append(2, 3);
+        sections.append(6, 0);
+        sections.append(7, 2);
+
+        assertEquals(SectionIndex.NO_SECTION, sections.findSection(1));
+        assertEquals(0, sections.findSection(2));
+        assertEquals(0, sections.findSection(5));
+        assertEquals(1, sections.findSection(6));
+        assertEquals(2, sections.findSection(9));
+        assertTrue(sections.isHeader(6));
+        assertFalse(sections.isHeader(8));
+    }
+
+    @Test
+    public void removedHeaderMergesItemsIntoSectionAbove() {
+        SectionIndex sections = new SectionIndex();
+        sections.append(0, 2); // 1, 2
+        sections.append(3, 2); // 4, 5
+        sections.append(6, 1); // 7
+
+        sections.onItemsRemoved(3, 2); // header 3 and item 4
+
+        assertEquals(2, sections.size());
+        assertEquals(0, sections.getHeaderPosition(0));
+        assertEquals(3, sections.getItemCount(0)); // 1, 2 and the former 5
+        assertEquals(4, sections.getHeaderPosition(1));
+        assertEquals(1, sections.getItemCount(1));
+    }
+
+    @Test
+    public void removedFirstHeaderMovesItemsAboveAllHeaders() {
+        SectionIndex sections = new SectionIndex();
+        sections.append(1, 2);
+        sections.append(4, 1);
+
+        sections.onItemsRemoved(1, 1);
+
+        assertEquals(1, sections.size());
+        assertEquals(3, sections.getHeaderPosition(0));
+        assertEquals(SectionIndex.NO_SECTION, sections.findSection(2));
+    }
+
+    @Test
+    public void removalKeepsHeightsOfUntouchedSections() {
+        SectionIndex sections = new SectionIndex();
+        sections.append(0, 2);
+        sections.append(3, 2);
+        sections.setRowHeight(0, 100);
+        sections.setRowHeight(1, 120);
+        sections.setHeaderHeight(1, 40);
+
+        sections.onItemsRemoved(1, 1);
+
+        assertEquals(SectionIndex.NO_SIZE, sections.getRowHeight(0));
+        assertEquals(120, sections.getRowHeight(1));
+        assertEquals(40, sections.getHeaderHeight(1));
+    }
+
+    @Test
+    public void movedItemChangesSection() {
+        SectionIndex sections = new SectionIndex();
+        sections.append(0, 2); // 1, 2
+        sections.append(3, 2); // 4, 5
+
+        sections.onItemMoved(1, 5);
+
+        assertEquals(0, sections.getHeaderPosition(0));
+        assertEquals(1, sections.getItemCount(0));
+        assertEquals(2, sections.getHeaderPosition(1));
+        assertEquals(3, sections.getItemCount(1));
+    }
+
+    @Test
+    public void patchesMatchModel() {
+        Random random = new Random(42);
+        for (int iteration = 0; iteration < 500; iteration++) {
+            Model model = Model.random(random);
+            SectionIndex sections = model.toIndex();
+
+            for (int change = 0; change < 10; change++) {
+                int size = model.size();
+                int operation = random.nextInt(3);
+                if (operation == 0 || size == 0) {
+                    int positionStart = random.nextInt(size + 1);
+                    int count = 1 + random.nextInt(4);
+                    model.add(positionStart, count);
+                    sections.onItemsAdded(positionStart, count);
+                } else if (operation == 1) {
+                    int positionStart = random.nextInt(size);
+                    int count = 1 + random.nextInt(Math.min(4, size - positionStart));
+                    model.remove(positionStart, count);
+                    sections.onItemsRemoved(positionStart, count);
+                } else {
+                    int from = random.nextInt(size);
+                    if (model.headers.get(from)) {
+                        continue; // only items are moved one by one
+                    }
+                    int to = random.nextInt(size);
+                    model.move(from, to);
+                    sections.onItemMoved(from, to);
+                }
+                assertMatches(model, sections);
+            }
+        }
+    }
+
+    private static void assertMatches(Model model, SectionIndex sections) {
+        SectionIndex expected = model.toIndex();
+        assertEquals(model.toString(), expected.size(), sections.size());
+        for (int section = 0; section < expected.size(); section++) {
+            assertEquals(model.toString(), expected.getHeaderPosition(section), sections.getHeaderPosition(section));
+            assertEquals(model.toString(), expected.getItemCount(section), sections.getItemCount(section));
+        }
+    }
+
+    /*
+    * Header flag of every position
+    */
+    private static class Model {
+
+        final List<Boolean> headers = new ArrayList<>();
+
+        static Model random(Random random) {
+            Model model = new Model();
+            int size = random.nextInt(20);
+            for (int i = 0; i < size; i++) {
+                model.headers.add(random.nextInt(4) == 0);
+            }
+            return model;
+        }
+
+        int size() {
+            return headers.size();
+        }
+
+        void add(int positionStart, int count) {
+            for (int i = 0; i < count; i++) {
+                headers.add(positionStart, false);
+            }
+        }
+
+        void remove(int positionStart, int count) {
+            for (int i = 0; i < count; i++) {
+                headers.remove(positionStart);
+            }
+        }
+
+        void move(int from, int to) {
+            headers.add(to, headers.remove(from));
+        }
+
+        SectionIndex toIndex() {
+            SectionIndex sections = new SectionIndex();
+            for (int position = 0; position < headers.size(); position++) {
+                if (!headers.get(position)) {
+                    continue;
+                }
+                int items = 0;
+                while (position + items + 1 < headers.size() && !headers.get(position + items + 1)) {
+                    items++;
+                }
+                sections.append(position, items);
+            }
+            return sections;
+        }
+
+        @Override
+        public String toString() {
+            return headers.toString();
+        }
+    }
+
+}